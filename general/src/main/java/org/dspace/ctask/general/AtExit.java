@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * AtExit manages resources that tasks share for the life of the JVM.
+ * Curation tasks have no close hook, and a task instance is made for each
+ * curation (UI, workflow, command line), so resources worth keeping between
+ * curations - thread pools, connections, buffered files - are shared by
+ * all instances and released only when the JVM exits. Threads made here
+ * are daemons, so they never hold up that exit.
+ *
+ * @author richardrodgers
+ */
+class AtExit
+{
+    /** log4j category */
+    private static final Logger log = Logger.getLogger(AtExit.class);
+
+    private AtExit() {
+    }
+
+    /**
+     * Runs an action when the JVM exits
+     *
+     * @param action the action
+     */
+    static void run(final Runnable action) {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Writes any buffered output of a resource when the JVM exits
+     *
+     * @param resource the resource
+     * @param name the resource name, for the log
+     */
+    static void flush(final Flushable resource, final String name) {
+        run(new Runnable() {
+            public void run() {
+                try {
+                    resource.flush();
+                } catch (IOException ioE) {
+                    log.error("Unable to flush " + name + ": " + ioE.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a new fixed-size pool of daemon threads
+     *
+     * @param name the thread name
+     * @param size the number of threads
+     * @return the pool
+     */
+    static ExecutorService daemonPool(final String name, int size) {
+        return Executors.newFixedThreadPool(size, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BlockManifest records digests of a few sample blocks of a bitstream,
+ * at evenly spaced offsets determined by its size (always including the
+ * first and last blocks when there are two or more), so that later
+ * spot-checks need read only those blocks. Sample blocks never overlap.
+ * A manifest is built by observing a full digest pass over the content,
+ * and is persisted as a small text file:
+ * 
+ * size  algorithm
+ * offset  length  digest
+ * ...
+ *
+ * @author richardrodgers
+ */
+class BlockManifest implements Digester.Observer
+{
+    // bitstream size
+    private final long size;
+    // block digest algorithm
+    private final String algorithm;
+    // sample block offsets (ascending) and lengths
+    private final long[] offsets;
+    private final int[] lengths;
+    // sample block hex digests, null until complete
+    private final String[] digests;
+    // in-progress block digests while building
+    private MessageDigest[] mds = null;
+    
+    private BlockManifest(long size, String algorithm, long[] offsets, int[] lengths, String[] digests) {
+        this.size = size;
+        this.algorithm = algorithm;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.digests = digests;
+    }
+    
+    /**
+     * Creates a manifest to be built by observing content
+     * 
+     * @param size the content size
+     * @param algorithm the block digest algorithm
+     * @param blockSize the sample block size
+     * @param samples the maximum number of sample blocks
+     * @return the manifest
+     * @throws IOException if algorithm unknown
+     */
+    static BlockManifest create(long size, String algorithm, int blockSize, int samples) throws IOException {
+        int count = (int)Math.max(1L, Math.min(samples, size / blockSize));
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            lengths[i] = (int)Math.min(blockSize, size);
+            // a lone sample is the last block, which catches truncation
+            offsets[i] = (count == 1) ? size - lengths[i] : (size - blockSize) * i / (count - 1);
+        }
+        BlockManifest manifest = new BlockManifest(size, algorithm, offsets, lengths, new String[count]);
+        manifest.mds = new MessageDigest[count];
+        for (int i = 0; i < count; i++) {
+            manifest.mds[i] = Digester.messageDigest(algorithm);
+        }
+        return manifest;
+    }
+    
+    /**
+     * Loads a saved manifest
+     * 
+     * @param file the manifest file
+     * @return the manifest, or null if no manifest file
+     * @throws IOException
+     */
+    static BlockManifest load(File file) throws IOException {
+        if (! file.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String[] header = reader.readLine().split("\t");
+            List<String[]> blocks = new ArrayList<String[]>();
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                blocks.add(line.split("\t"));
+            }
+            long[] offsets = new long[blocks.size()];
+            int[] lengths = new int[blocks.size()];
+            String[] digests = new String[blocks.size()];
+            for (int i = 0; i < blocks.size(); i++) {
+                String[] block = blocks.get(i);
+                offsets[i] = Long.parseLong(block[0]);
+                lengths[i] = Integer.parseInt(block[1]);
+                digests[i] = block[2];
+            }
+            return new BlockManifest(Long.parseLong(header[0]), header[1], offsets, lengths, digests);
+        } catch (RuntimeException rtE) {
+            throw new IOException("Malformed block manifest: " + file.getPath(), rtE);
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Saves a complete manifest
+     * 
+     * @param file the manifest file
+     * @throws IOException
+     */
+    void save(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write(size + "\t" + algorithm + "\n");
+            for (int i = 0; i < offsets.length; i++) {
+                writer.write(offsets[i] + "\t" + lengths[i] + "\t" + digests[i] + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    long size() {
+        return size;
+    }
+    
+    String algorithm() {
+        return algorithm;
+    }
+    
+    /**
+     * Returns the number of bytes a spot-check reads
+     */
+    long sampledBytes() {
+        long total = 0L;
+        for (int length : lengths) {
+            total += length;
+        }
+        return total;
+    }
+    
+    public void observe(long offset, ByteBuffer data) {
+        long end = offset + data.remaining();
+        for (int i = 0; i < offsets.length; i++) {
+            long from = Math.max(offset, offsets[i]);
+            long to = Math.min(end, offsets[i] + lengths[i]);
+            if (from < to) {
+                ByteBuffer overlap = data.duplicate();
+                overlap.position(data.position() + (int)(from - offset));
+                overlap.limit(overlap.position() + (int)(to - from));
+                mds[i].update(overlap);
+            }
+        }
+    }
+    
+    /**
+     * Completes a manifest after all content has been observed
+     */
+    void complete() {
+        for (int i = 0; i < mds.length; i++) {
+            digests[i] = Digester.toHex(mds[i].digest());
+        }
+        mds = null;
+    }
+    
+    /**
+     * Spot-checks file content against the manifest
+     * 
+     * @param file the content file
+     * @param throttle the read rate limiter, null if unlimited
+     * @return description of first discrepancy, or null if none
+     * @throws IOException
+     */
+    String check(File file, Throttle throttle) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            if (channel.size() != size) {
+                return "size " + channel.size() + " expected " + size;
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                ByteBuffer block = ByteBuffer.allocate(lengths[i]);
+                while (block.hasRemaining()) {
+                    int read = channel.read(block, offsets[i] + block.position());
+                    if (read == -1) {
+                        return "truncated at offset " + (offsets[i] + block.position());
+                    }
+                    if (throttle != null) {
+                        throttle.acquire(read);
+                    }
+                }
+                String discrepancy = compare(i, block.array());
+                if (discrepancy != null) {
+                    return discrepancy;
+                }
+            }
+        } finally {
+            fis.close();
+        }
+        return null;
+    }
+    
+    /**
+     * Spot-checks stream content against the manifest. The stream is not closed.
+     * 
+     * @param in the content stream
+     * @param throttle the read rate limiter, null if unlimited
+     * @return description of first discrepancy, or null if none
+     * @throws IOException
+     */
+    String check(InputStream in, Throttle throttle) throws IOException {
+        long pos = 0L;
+        for (int i = 0; i < offsets.length; i++) {
+            while (pos < offsets[i]) {
+                long skipped = in.skip(offsets[i] - pos);
+                if (skipped <= 0L) {
+                    // skip may not detect end of stream
+                    if (in.read() == -1) {
+                        return "truncated at offset " + pos;
+                    }
+                    skipped = 1L;
+                }
+                pos += skipped;
+            }
+            byte[] block = new byte[lengths[i]];
+            int filled = 0;
+            while (filled < block.length) {
+                int read = in.read(block, filled, block.length - filled);
+                if (read == -1) {
+                    return "truncated at offset " + (pos + filled);
+                }
+                if (throttle != null) {
+                    throttle.acquire(read);
+                }
+                filled += read;
+            }
+            pos += filled;
+            String discrepancy = compare(i, block);
+            if (discrepancy != null) {
+                return discrepancy;
+            }
+        }
+        if (pos == size && in.read() != -1) {
+            return "content exceeds size " + size;
+        }
+        return null;
+    }
+    
+    private String compare(int i, byte[] block) throws IOException {
+        MessageDigest md = Digester.messageDigest(algorithm);
+        String digest = Digester.toHex(md.digest(block));
+        if (! digest.equals(digests[i])) {
+            return "block at offset " + offsets[i] + " manifest: " + digests[i] + " current: " + digest;
+        }
+        return null;
+    }
+}
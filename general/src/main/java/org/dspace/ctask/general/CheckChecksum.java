@@ -7,18 +7,38 @@
  */
 package org.dspace.ctask.general;
 
+import java.io.File;
+import java.io.InputStream;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
+import org.apache.log4j.Logger;
 import org.dspace.authorize.AuthorizeException;
+import org.dspace.authorize.AuthorizeManager;
 import org.dspace.content.Bitstream;
 import org.dspace.content.Bundle;
 import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Constants;
 import org.dspace.curate.AbstractCurationTask;
+import org.dspace.curate.Curator;
 import org.dspace.curate.Suspendable;
-import org.dspace.curate.Utils;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
 
 import static org.dspace.curate.Curator.*;
 
@@ -26,6 +46,68 @@ import static org.dspace.curate.Curator.*;
  * CheckChecksum computes a checksum for each selected bitstream
  * and compares it to the stored ingest-time calculated value.
  * Task succeeds if all checksums agree, else fails.
+ * 
+ * The optional task property 'workers' (default 1) sets the number of
+ * bitstreams verified concurrently. When greater than 1, all bitstreams
+ * of the item are verified, each discrepancy is reported, and the task
+ * result is the first discrepancy in bundle/bitstream order.
+ * 
+ * If the optional boolean task property 'report.all' is true, every
+ * bitstream is verified in one pass, and all discrepancies (bundle, seqId,
+ * name, ingest and current checksums) are recorded in a single report line,
+ * which is also the task result.
+ * 
+ * If the optional task property 'ledger.file' names a file, the task keeps
+ * a ledger there of when each bitstream (by internal id) was last verified,
+ * and with what result. Only bitstreams never verified, failed, or last
+ * verified more than 'ledger.interval' days ago (default 30) are then
+ * checked. The optional 'ledger.budget' property limits the megabytes
+ * checked per run (default 0 = unlimited). The budget is spent item by
+ * item, in container order: within each item the stalest due bitstreams
+ * are chosen first, and those over budget are deferred to subsequent runs.
+ * 
+ * Bitstreams in local file-system assetstores are read directly through a
+ * FileChannel, using direct buffers of 'nio.buffer' kilobytes (default 1024),
+ * or memory-mapped if 'nio.mapped' is true. Other bitstreams are read
+ * through streams with the same buffer size. Setting 'nio.enabled' false
+ * reads all bitstreams through streams.
+ * 
+ * Reads may be throttled to protect other users of the storage: the
+ * optional properties 'throttle.rate' (kilobytes per second) and
+ * 'throttle.iops' (reads per second) set limits shared by all workers,
+ * and the effective rate achieved is appended to the task result.
+ * 
+ * The optional task property 'digests' lists (comma-separated) further
+ * digest algorithms, e.g. 'SHA-256,SHA-512', computed in the same read
+ * as the stored checksum, and recorded in the report for each bitstream.
+ * 
+ * If the optional task property 'spotcheck.dir' names a directory, each
+ * successful full verification saves there a manifest of digests of up to
+ * 'spotcheck.samples' (default 16) sample blocks of 'spotcheck.block'
+ * kilobytes (default 64) at evenly spaced offsets. If 'spotcheck' is also
+ * true, bitstreams having a manifest are instead spot-checked: only the
+ * sample blocks are read and compared, a cheap test for bit rot and
+ * truncation. Bitstreams lacking a manifest are verified in full.
+ * 
+ * If the optional task property 'chunktree.dir' names a directory, each
+ * successful full verification saves there a hash tree over chunks of
+ * 'chunktree.size' megabytes (default 64), and a later failed verification
+ * reports the byte ranges that differ from the saved tree. If 'chunktree'
+ * is also true, local bitstreams having a tree are instead verified
+ * against it, with chunks digested concurrently ('chunktree.workers'
+ * threads, default one per processor).
+ * 
+ * If the optional task property 'report.file' names a file, a record of
+ * each bitstream verification (handle, bundle, seqId, algorithm, expected,
+ * actual, bytes, elapsedMs, result) is appended to it, in CSV or JSON Lines
+ * as 'report.format' is 'csv' (default) or 'jsonl', written in batches of
+ * 'report.batch' records (default 1000).
+ * 
+ * If the optional boolean task property 'stats' is true, run statistics
+ * (counts of items, bitstreams, mismatches and bytes, read and digest time,
+ * and verification time histograms) are kept, exposed through JMX as
+ * org.dspace.ctask.general:type=FixityStats,name=<taskId>, and summarized
+ * in each task result.
  *
  * @author richardrodgers
  */
@@ -33,6 +115,159 @@ import static org.dspace.curate.Curator.*;
 @Suspendable(invoked=Invoked.INTERACTIVE)
 public class CheckChecksum extends AbstractCurationTask
 {   
+    /** log4j category */
+    private static final Logger log = Logger.getLogger(CheckChecksum.class);
+    private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+    // internal id prefix of registered (not stored) bitstreams
+    private static final String REGISTERED_FLAG = "-R";
+    // thread pools shared by all task instances, by task id and use
+    private static final Map<String, ExecutorService> pools = new HashMap<String, ExecutorService>();
+    // number of bitstreams verified concurrently
+    private int workers = 1;
+    // thread pool for concurrent verification, null if serial
+    private ExecutorService verifier = null;
+    // verify all bitstreams and report all discrepancies in a single line
+    private boolean reportAll = false;
+    // verification history, null if no ledger configured
+    private FixityLedger ledger = null;
+    // minimum time (millis) between verifications of a bitstream
+    private long interval = 0L;
+    // maximum bytes verified per run, 0 = unlimited
+    private long budget = 0L;
+    // bytes selected for verification so far in this run
+    private long bytesSelected = 0L;
+    // due bitstreams of the current item deferred by the budget
+    private int deferred = 0;
+    // read buffer size in bytes
+    private int bufferSize = 0;
+    // local file-system assetstores by store number, null if fast path disabled
+    private Map<Integer, File> assetstores = null;
+    // memory-map local files rather than read them
+    private boolean mapped = false;
+    // read rate limiter, null if unlimited
+    private Throttle throttle = null;
+    // bytes verified in current item
+    private long itemBytes = 0L;
+    // additional digest algorithms computed and reported
+    private List<String> algorithms = new ArrayList<String>();
+    // directory of block manifests, null if none kept
+    private File manifestDir = null;
+    // block manifest sample block size in bytes
+    private int blockSize = 0;
+    // maximum sample blocks per manifest
+    private int samples = 0;
+    // spot-check bitstreams having block manifests, rather than verify in full
+    private boolean spotCheck = false;
+    // directory of chunk trees, null if none kept
+    private File treeDir = null;
+    // chunk tree chunk size in bytes
+    private int chunkSize = 0;
+    // verify local bitstreams having chunk trees chunk-wise, rather than in full
+    private boolean treeCheck = false;
+    // thread pool digesting chunks, null unless tree checking
+    private ExecutorService chunkPool = null;
+    // structured report of each verification, null if none
+    private FixityReport fixityReport = null;
+    // run statistics, null if not kept
+    private FixityStats stats = null;
+    
+    /**
+     * Initializes task
+     * @param curator  Curator object performing this task
+     * @param taskId the configured local name of the task 
+     */
+    @Override
+    public void init(Curator curator, String taskId) throws IOException {
+        super.init(curator, taskId);
+        workers = taskIntProperty("workers", 1);
+        reportAll = taskBooleanProperty("report.all", false);
+        if (workers > 1) {
+            verifier = pool(taskId, "checksum-verifier", workers);
+        }
+        bufferSize = taskIntProperty("nio.buffer", 1024) * 1024;
+        if (taskBooleanProperty("nio.enabled", true)) {
+            mapped = taskBooleanProperty("nio.mapped", false);
+            assetstores = new HashMap<Integer, File>();
+            String dir = ConfigurationManager.getProperty("assetstore.dir");
+            if (dir != null) {
+                assetstores.put(0, new File(dir));
+            }
+            // other stores may be local directories or SRB
+            for (int i = 1; ; i++) {
+                dir = ConfigurationManager.getProperty("assetstore.dir." + i);
+                if (dir != null) {
+                    assetstores.put(i, new File(dir));
+                } else if (ConfigurationManager.getProperty("srb.host." + i) == null) {
+                    break;
+                }
+            }
+        }
+        String algList = taskProperty("digests");
+        if (algList != null) {
+            for (String alg : algList.split(",")) {
+                if (alg.trim().length() > 0) {
+                    algorithms.add(alg.trim());
+                }
+            }
+        }
+        long rate = taskLongProperty("throttle.rate", 0L) * 1024L;
+        long iops = taskLongProperty("throttle.iops", 0L);
+        if (rate > 0L || iops > 0L) {
+            throttle = new Throttle(rate, iops);
+        }
+        String spotDir = taskProperty("spotcheck.dir");
+        if (spotDir != null) {
+            manifestDir = new File(spotDir);
+            blockSize = taskIntProperty("spotcheck.block", 64) * 1024;
+            samples = taskIntProperty("spotcheck.samples", 16);
+            spotCheck = taskBooleanProperty("spotcheck", false);
+        }
+        String chunkDir = taskProperty("chunktree.dir");
+        if (chunkDir != null) {
+            treeDir = new File(chunkDir);
+            long chunkMB = taskLongProperty("chunktree.size", 64L);
+            // chunks are digested as int-indexed buffers
+            if (chunkMB < 1L || chunkMB * BYTES_PER_MB > Integer.MAX_VALUE) {
+                throw new IOException("chunktree.size must be from 1 to " +
+                                      (Integer.MAX_VALUE / BYTES_PER_MB) + " megabytes");
+            }
+            chunkSize = (int)(chunkMB * BYTES_PER_MB);
+            treeCheck = taskBooleanProperty("chunktree", false);
+            if (treeCheck) {
+                int chunkWorkers = taskIntProperty("chunktree.workers", Runtime.getRuntime().availableProcessors());
+                chunkPool = pool(taskId, "checksum-chunker", chunkWorkers);
+            }
+        }
+        if (taskBooleanProperty("stats", false)) {
+            stats = FixityStats.open(taskId);
+        }
+        String reportPath = taskProperty("report.file");
+        if (reportPath != null) {
+            fixityReport = FixityReport.open(new File(reportPath), taskProperty("report.format"),
+                                             taskIntProperty("report.batch", 1000));
+        }
+        String ledgerPath = taskProperty("ledger.file");
+        if (ledgerPath != null) {
+            ledger = FixityLedger.open(new File(ledgerPath));
+            interval = taskLongProperty("ledger.interval", 30L) * MILLIS_PER_DAY;
+            budget = taskLongProperty("ledger.budget", 0L) * BYTES_PER_MB;
+        }
+    }
+    
+    // returns the thread pool of a task for a use, creating it on first use
+    private static ExecutorService pool(String taskId, String name, int size) {
+        String key = taskId + "/" + name;
+        synchronized (pools) {
+            ExecutorService pool = pools.get(key);
+            if (pool == null) {
+                pool = AtExit.daemonPool(name, size);
+                pools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+    
     /**
      * Perform the curation task upon passed DSO
      *
@@ -43,29 +278,477 @@ public class CheckChecksum extends AbstractCurationTask
     public int perform(DSpaceObject dso) throws IOException  {
         if (dso.getType() == Constants.ITEM) {
             Item item = (Item)dso;
+            List<Discrepancy> discrepancies = new ArrayList<Discrepancy>();
+            int unselected = 0;
+            long start = System.currentTimeMillis();
+            itemBytes = 0L;
+            deferred = 0;
+            List<Target> targets = null;
             try {
-                for (Bundle bundle : item.getBundles()) {
-                    for (Bitstream bs : bundle.getBitstreams()) {
-                        String compCs = Utils.checksum(bs.retrieve(), bs.getChecksumAlgorithm());
-                        if (! compCs.equals(bs.getChecksum())) {
-                            String result = "Checksum discrepancy in item: " + item.getHandle() +
-                                      " for bitstream: '" + bs.getName() + "' (seqId: " + bs.getSequenceID() + ")" +
-                                      " ingest: " + bs.getChecksum() + " current: " + compCs;
-                            report(result);
-                            setResult(result);
-                            return CURATE_FAIL;
+                targets = targets(item);
+                // spot-checks are cheap, so ignore ledger selection
+                if (ledger != null && ! spotCheck) {
+                    int total = targets.size();
+                    targets = select(targets);
+                    unselected = total - targets.size();
+                    if (targets.isEmpty() && total > 0) {
+                        if (deferred > 0) {
+                            setResult("Verification of " + deferred + " due bitstreams deferred by ledger budget in item: " +
+                                      item.getHandle());
+                        } else {
+                            setResult("No bitstreams due for verification in item: " + item.getHandle());
                         }
+                        return CURATE_SKIP;
                     }
                 }
+                if (verifier != null) {
+                    verifyConcurrently(targets, discrepancies);
+                } else {
+                    verifySerially(targets, discrepancies);
+                }
             } catch (AuthorizeException authE) {
                 throw new IOException("AuthorizeException: " + authE.getMessage());
             } catch (SQLException sqlE) {
                 throw new IOException("SQLException: " + sqlE.getMessage());
+            } finally {
+                if (ledger != null) {
+                    ledger.flush();
+                }
+            }
+            if (algorithms.size() > 0) {
+                reportDigests(item, targets);
+            }
+            if (discrepancies.size() > 0) {
+                String result = null;
+                if (reportAll) {
+                    StringBuilder sb = new StringBuilder("Checksum discrepancies in item: ");
+                    sb.append(item.getHandle()).append(" count: ").append(discrepancies.size());
+                    for (Discrepancy disc : discrepancies) {
+                        sb.append(" [").append(disc.entry()).append("]");
+                    }
+                    result = sb.toString();
+                    report(result);
+                } else {
+                    for (Discrepancy disc : discrepancies) {
+                        report(disc.message(item));
+                    }
+                    result = discrepancies.get(0).message(item);
+                    if (discrepancies.size() > 1) {
+                        result += " (" + discrepancies.size() + " discrepancies in item)";
+                    }
+                }
+                setResult(result + rate(start));
+                return CURATE_FAIL;
+            }
+            String result = "All bitstream checksums agree in item: " + item.getHandle();
+            if (unselected > deferred) {
+                result += " (" + (unselected - deferred) + " bitstreams not due)";
+            }
+            if (deferred > 0) {
+                result += " (" + deferred + " bitstreams deferred by ledger budget)";
             }
-            setResult("All bitstream checksums agree in item: " + item.getHandle());
+            setResult(result + rate(start));
             return CURATE_SUCCESS;
         } else {
             return CURATE_SKIP;
         }
     }
+    
+    private void reportDigests(Item item, List<Target> targets) {
+        for (Target target : targets) {
+            if (target.digests != null && target.digests.length > 1) {
+                StringBuilder sb = new StringBuilder("Digests for item: ");
+                sb.append(item.getHandle()).append(" bitstream: '").append(target.bs.getName());
+                sb.append("' (seqId: ").append(target.bs.getSequenceID()).append(")");
+                int i = 1;
+                for (String alg : algorithms) {
+                    if (! alg.equalsIgnoreCase(target.bs.getChecksumAlgorithm())) {
+                        sb.append(" ").append(alg).append(": ").append(target.digests[i++]);
+                    }
+                }
+                report(sb.toString());
+            }
+        }
+    }
+    
+    // throttled rate and run statistics, as configured
+    private String rate(long start) {
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1L);
+        String rate = "";
+        if (throttle != null) {
+            rate = " rate: " + (itemBytes * 1000L / elapsed / 1024L) + " KB/s";
+        }
+        if (stats != null) {
+            stats.recordItem(elapsed);
+            rate += " (" + stats.summary() + ")";
+        }
+        return rate;
+    }
+    
+    private List<Target> targets(Item item) throws SQLException {
+        List<Target> targets = new ArrayList<Target>();
+        for (Bundle bundle : item.getBundles()) {
+            for (Bitstream bs : bundle.getBitstreams()) {
+                targets.add(new Target(item.getHandle(), bundle, bs));
+            }
+        }
+        return targets;
+    }
+    
+    private List<Target> select(List<Target> targets) throws SQLException {
+        // find bitstreams never verified, failed, or verified too long ago
+        long now = System.currentTimeMillis();
+        List<Target> due = new ArrayList<Target>();
+        for (Target target : targets) {
+            FixityLedger.Entry entry = ledger.get(internalId(target));
+            if (entry == null || ! entry.ok || now - entry.verified >= interval) {
+                target.lastVerified = (entry != null) ? entry.verified : 0L;
+                due.add(target);
+            }
+        }
+        // spend any byte budget on the stalest first (within this item only:
+        // items are curated one at a time, so the run cannot be ranked whole)
+        Collections.sort(due, new Comparator<Target>() {
+            public int compare(Target t1, Target t2) {
+                return (t1.lastVerified < t2.lastVerified) ? -1 :
+                       (t1.lastVerified > t2.lastVerified) ? 1 : 0;
+            }
+        });
+        Set<Target> selected = new HashSet<Target>();
+        deferred = 0;
+        for (Target target : due) {
+            long size = target.bs.getSize();
+            if (budget > 0L && bytesSelected > 0L && bytesSelected + size > budget) {
+                // deferred to a later run
+                ++deferred;
+                continue;
+            }
+            bytesSelected += size;
+            selected.add(target);
+        }
+        // verify in bundle/bitstream order
+        List<Target> result = new ArrayList<Target>();
+        for (Target target : targets) {
+            if (selected.contains(target)) {
+                result.add(target);
+            }
+        }
+        return result;
+    }
+    
+    private String internalId(Target target) throws SQLException {
+        if (target.internalId == null) {
+            TableRow row = DatabaseManager.querySingle(Curator.curationContext(),
+                                "SELECT internal_id FROM bitstream WHERE bitstream_id = ?", target.bs.getID());
+            target.internalId = (row != null) ? row.getStringColumn("internal_id") : "bitstream-" + target.bs.getID();
+        }
+        return target.internalId;
+    }
+    
+    private File localFile(Target target) throws SQLException {
+        File assetstore = (assetstores != null) ? assetstores.get(target.bs.getStoreNumber()) : null;
+        if (assetstore == null) {
+            return null;
+        }
+        String id = internalId(target);
+        // registered bitstreams (and unexpected ids) take the stream path
+        if (id.startsWith(REGISTERED_FLAG) || id.length() < 6) {
+            return null;
+        }
+        // same layout as BitstreamStorageManager: 3 levels of 2 digits
+        String path = id.substring(0, 2) + File.separator + id.substring(2, 4) +
+                      File.separator + id.substring(4, 6) + File.separator + id;
+        File file = new File(assetstore, path);
+        return (file.isFile() && file.length() == target.bs.getSize()) ? file : null;
+    }
+    
+    private void open(Target target) throws AuthorizeException, IOException, SQLException {
+        File file = localFile(target);
+        // load any saved manifest and tree before opening content, so nothing leaks if they fail
+        if (manifestDir != null) {
+            Bitstream bs = target.bs;
+            BlockManifest manifest = null;
+            if (spotCheck) {
+                try {
+                    manifest = BlockManifest.load(storeFile(manifestDir, target, ".blocks"));
+                } catch (IOException ioE) {
+                    // a bad manifest is as good as none - verify in full, replacing it
+                    log.error("caught exception: " + ioE);
+                }
+            }
+            if (manifest != null && manifest.size() == bs.getSize() &&
+                manifest.algorithm().equals(bs.getChecksumAlgorithm())) {
+                target.manifest = manifest;
+                target.spotCheck = true;
+            } else {
+                // build a manifest during full verification
+                target.manifest = BlockManifest.create(bs.getSize(), bs.getChecksumAlgorithm(), blockSize, samples);
+            }
+        }
+        if (treeDir != null && ! target.spotCheck) {
+            Bitstream bs = target.bs;
+            ChunkTree tree = null;
+            try {
+                tree = ChunkTree.load(storeFile(treeDir, target, ".tree"));
+            } catch (IOException ioE) {
+                // a bad tree is as good as none - verify in full, replacing it
+                log.error("caught exception: " + ioE);
+            }
+            if (tree != null && tree.chunkSize() == chunkSize &&
+                tree.algorithm().equals(bs.getChecksumAlgorithm())) {
+                target.savedTree = tree;
+            }
+            if (treeCheck && target.savedTree != null && file != null) {
+                target.treeCheck = true;
+            } else {
+                // build a tree during full verification
+                target.tree = ChunkTree.create(bs.getSize(), bs.getChecksumAlgorithm(), chunkSize);
+            }
+        }
+        if (file != null) {
+            // Bitstream.retrieve would make this check
+            AuthorizeManager.authorizeAction(Curator.curationContext(), target.bs, Constants.READ);
+            target.file = file;
+        } else {
+            target.in = target.bs.retrieve();
+        }
+    }
+    
+    private File storeFile(File dir, Target target, String suffix) throws SQLException {
+        // internal ids of registered bitstreams are paths - flatten them
+        String name = internalId(target).replaceAll("[^A-Za-z0-9._-]", "_");
+        String subDir = (name.length() > 2) ? name.substring(0, 2) : "_";
+        return new File(new File(dir, subDir), name + suffix);
+    }
+    
+    private void examine(Target target) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            if (target.spotCheck) {
+                target.spotDiscrepancy = (target.file != null) ?
+                                         target.manifest.check(target.file, throttle) :
+                                         target.manifest.check(target.in, throttle);
+            } else if (target.treeCheck) {
+                ChunkTree current = ChunkTree.compute(target.file, target.bs.getChecksumAlgorithm(),
+                                                      chunkSize, bufferSize, chunkPool, throttle);
+                target.damaged = target.savedTree.differences(current);
+            } else {
+                target.digests = checksum(target);
+                if (target.manifest != null) {
+                    target.manifest.complete();
+                }
+                if (target.tree != null) {
+                    target.tree.complete();
+                    if (target.savedTree != null) {
+                        target.damaged = target.savedTree.differences(target.tree);
+                    }
+                }
+            }
+        } finally {
+            if (target.in != null) {
+                target.in.close();
+            }
+            target.elapsed = System.currentTimeMillis() - start;
+        }
+    }
+    
+    private String[] checksum(Target target) throws IOException {
+        // stored algorithm first, then any others wanted
+        List<String> algList = new ArrayList<String>();
+        algList.add(target.bs.getChecksumAlgorithm());
+        for (String alg : algorithms) {
+            if (! alg.equalsIgnoreCase(algList.get(0))) {
+                algList.add(alg);
+            }
+        }
+        String[] algs = algList.toArray(new String[algList.size()]);
+        if (target.file != null) {
+            return Digester.digest(target.file, algs, bufferSize, mapped, throttle, stats,
+                                   target.manifest, target.tree);
+        }
+        return Digester.digest(target.in, algs, bufferSize, throttle, stats, target.manifest, target.tree);
+    }
+    
+    private void verifySerially(List<Target> targets, List<Discrepancy> discrepancies)
+            throws AuthorizeException, IOException, SQLException {
+        for (Target target : targets) {
+            open(target);
+            examine(target);
+            if (! verified(target, discrepancies) && ! reportAll) {
+                return;
+            }
+        }
+    }
+    
+    private void verifyConcurrently(List<Target> targets, List<Discrepancy> discrepancies)
+            throws AuthorizeException, IOException, SQLException {
+        // bound the number of open bitstreams to the number of workers
+        final Semaphore inFlight = new Semaphore(workers);
+        List<Future<Target>> examined = new ArrayList<Future<Target>>();
+        for (Target target : targets) {
+            inFlight.acquireUninterruptibly();
+            boolean submitted = false;
+            try {
+                // open on this thread - the curation context is not thread-safe
+                open(target);
+                final Target opened = target;
+                examined.add(verifier.submit(new Callable<Target>() {
+                    public Target call() throws IOException {
+                        try {
+                            examine(opened);
+                            return opened;
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+                submitted = true;
+            } finally {
+                if (! submitted) {
+                    inFlight.release();
+                }
+            }
+        }
+        // examine in submission order, so discrepancy order is deterministic
+        for (Future<Target> target : examined) {
+            verified(awaitExamined(target), discrepancies);
+        }
+    }
+    
+    private boolean verified(Target target, List<Discrepancy> discrepancies)
+            throws IOException, SQLException {
+        boolean ok = false;
+        if (target.spotCheck) {
+            ok = (target.spotDiscrepancy == null);
+            target.bytes = target.manifest.sampledBytes();
+            if (! ok) {
+                discrepancies.add(new Discrepancy(target.bundle, target.bs, null,
+                                                  "spot-check: " + target.spotDiscrepancy));
+            }
+        } else if (target.treeCheck) {
+            ok = target.damaged.isEmpty();
+            target.bytes = target.bs.getSize();
+            if (! ok) {
+                discrepancies.add(new Discrepancy(target.bundle, target.bs, null,
+                                                  "chunk-tree: " + damage(target)));
+            }
+        } else {
+            String compCs = target.digests[0];
+            ok = compCs.equals(target.bs.getChecksum());
+            target.bytes = target.bs.getSize();
+            if (! ok) {
+                // locate damage if an earlier tree exists
+                String detail = (target.damaged != null && ! target.damaged.isEmpty()) ? damage(target) : null;
+                discrepancies.add(new Discrepancy(target.bundle, target.bs, compCs, detail));
+            } else {
+                if (target.manifest != null) {
+                    target.manifest.save(storeFile(manifestDir, target, ".blocks"));
+                }
+                if (target.tree != null) {
+                    target.tree.save(storeFile(treeDir, target, ".tree"));
+                }
+            }
+        }
+        itemBytes += target.bytes;
+        if (stats != null) {
+            stats.recordBitstream(target.bytes, target.elapsed, ok);
+        }
+        if (fixityReport != null) {
+            Bitstream bs = target.bs;
+            fixityReport.write(target.handle, target.bundle.getName(), bs.getSequenceID(),
+                               bs.getChecksumAlgorithm(), bs.getChecksum(),
+                               (target.digests != null) ? target.digests[0] : null,
+                               target.bytes, target.elapsed, ok ? "OK" : "FAIL");
+        }
+        // spot-check successes are not full verifications
+        if (ledger != null && (! target.spotCheck || ! ok)) {
+            ledger.record(internalId(target), ok);
+        }
+        return ok;
+    }
+    
+    private String damage(Target target) {
+        StringBuilder sb = new StringBuilder("damaged bytes:");
+        for (String range : target.damaged) {
+            sb.append(" ").append(range);
+        }
+        return sb.toString();
+    }
+    
+    private Target awaitExamined(Future<Target> target) throws IOException {
+        try {
+            return target.get();
+        } catch (InterruptedException intE) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted awaiting checksum");
+        } catch (ExecutionException execE) {
+            Throwable cause = execE.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("Checksum computation failed: " + cause.getMessage(), cause);
+        }
+    }
+    
+    private static class Target {
+        public String handle;       // handle of item containing bitstream
+        public Bundle bundle;       // bundle containing bitstream
+        public Bitstream bs;        // bitstream to verify
+        public String internalId;   // assetstore internal id, null until resolved
+        public File file;           // local assetstore file, if read directly
+        public InputStream in;      // retrieved content stream, if not read directly
+        public String[] digests;    // computed digests, stored algorithm first
+        public BlockManifest manifest; // block manifest to build or spot-check, if any
+        public boolean spotCheck;   // spot-check rather than verify in full
+        public String spotDiscrepancy; // description of spot-check discrepancy, if any
+        public ChunkTree tree;      // chunk tree to build, if any
+        public ChunkTree savedTree; // chunk tree saved by earlier verification, if any
+        public boolean treeCheck;   // verify chunk-wise against saved tree, rather than in full
+        public List<String> damaged; // byte ranges differing from saved tree, if compared
+        public long lastVerified;   // time of last ledger verification, 0 = never
+        public long bytes;          // bytes read in verification
+        public long elapsed;        // time (millis) spent examining content
+        
+        public Target(String handle, Bundle bundle, Bitstream bs) {
+            this.handle = handle;
+            this.bundle = bundle;
+            this.bs = bs;
+        }
+    }
+    
+    private static class Discrepancy {
+        public String bundle;   // name of bundle containing bitstream
+        public int seqId;       // bitstream sequence ID
+        public String name;     // bitstream name
+        public String ingest;   // checksum recorded at ingest
+        public String current;  // checksum computed now, null if not computed
+        public String detail;   // description when no checksum computed
+        
+        public Discrepancy(Bundle bundle, Bitstream bs, String current, String detail) {
+            this.bundle = bundle.getName();
+            this.seqId = bs.getSequenceID();
+            this.name = bs.getName();
+            this.ingest = bs.getChecksum();
+            this.current = current;
+            this.detail = detail;
+        }
+        
+        // free-text description of discrepancy
+        public String message(Item item) {
+            return "Checksum discrepancy in item: " + item.getHandle() +
+                   " for bitstream: '" + name + "' (seqId: " + seqId + ")" + finding();
+        }
+        
+        // structured entry for combined report line
+        public String entry() {
+            return "bundle: " + bundle + " seqId: " + seqId + " name: '" + name + "'" + finding();
+        }
+        
+        private String finding() {
+            if (current == null) {
+                return " " + detail;
+            }
+            return " ingest: " + ingest + " current: " + current + ((detail != null) ? " " + detail : "");
+        }
+    }
 }
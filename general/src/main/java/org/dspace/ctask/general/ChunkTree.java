@@ -0,0 +1,306 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * ChunkTree is a hash tree over fixed-size chunks of a bitstream: the
+ * leaves are digests of each chunk, and each parent the digest of its
+ * children's digests, up to a single root. Equal roots mean equal content;
+ * otherwise comparing leaves locates the damaged byte ranges. A tree is
+ * built either by observing a sequential digest pass over the content,
+ * or from a local file with chunks digested concurrently. Trees are
+ * persisted as text files: a header line (size, chunk size, algorithm,
+ * root), then one leaf digest per line.
+ *
+ * @author richardrodgers
+ */
+class ChunkTree implements Digester.Observer
+{
+    // content size
+    private final long size;
+    // chunk size in bytes
+    private final int chunkSize;
+    // digest algorithm
+    private final String algorithm;
+    // leaf (chunk) digests
+    private final byte[][] leaves;
+    // digest of chunk being observed, and its index
+    private MessageDigest leafMd = null;
+    private int leaf = 0;
+    
+    private ChunkTree(long size, int chunkSize, String algorithm, byte[][] leaves) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.algorithm = algorithm;
+        this.leaves = leaves;
+    }
+    
+    /**
+     * Creates a tree to be built by observing content
+     * 
+     * @param size the content size
+     * @param algorithm the digest algorithm
+     * @param chunkSize the chunk size in bytes
+     * @return the tree
+     * @throws IOException if algorithm unknown
+     */
+    static ChunkTree create(long size, String algorithm, int chunkSize) throws IOException {
+        ChunkTree tree = new ChunkTree(size, chunkSize, algorithm, new byte[chunks(size, chunkSize)][]);
+        tree.leafMd = Digester.messageDigest(algorithm);
+        return tree;
+    }
+    
+    /**
+     * Computes the tree of a local file, digesting chunks concurrently
+     * 
+     * @param file the content file
+     * @param algorithm the digest algorithm
+     * @param chunkSize the chunk size in bytes
+     * @param bufferSize the read buffer size in bytes
+     * @param pool the executor digesting chunks
+     * @param throttle the read rate limiter, null if unlimited
+     * @return the tree
+     * @throws IOException
+     */
+    static ChunkTree compute(File file, final String algorithm, final int chunkSize, final int bufferSize,
+                             ExecutorService pool, final Throttle throttle) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            // positional reads on a shared channel are safe across threads
+            final FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < chunks(size, chunkSize); i++) {
+                final long start = (long)i * chunkSize;
+                final long end = Math.min(size, start + chunkSize);
+                futures.add(pool.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        MessageDigest md = Digester.messageDigest(algorithm);
+                        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+                        long pos = start;
+                        while (pos < end) {
+                            buffer.clear();
+                            buffer.limit((int)Math.min(bufferSize, end - pos));
+                            int read = channel.read(buffer, pos);
+                            if (read == -1) {
+                                break;
+                            }
+                            if (throttle != null) {
+                                throttle.acquire(read);
+                            }
+                            buffer.flip();
+                            md.update(buffer);
+                            pos += read;
+                        }
+                        return md.digest();
+                    }
+                }));
+            }
+            byte[][] leaves = new byte[futures.size()][];
+            for (int i = 0; i < leaves.length; i++) {
+                leaves[i] = await(futures.get(i));
+            }
+            return new ChunkTree(size, chunkSize, algorithm, leaves);
+        } finally {
+            fis.close();
+        }
+    }
+    
+    /**
+     * Loads a saved tree
+     * 
+     * @param file the tree file
+     * @return the tree, or null if no tree file
+     * @throws IOException
+     */
+    static ChunkTree load(File file) throws IOException {
+        if (! file.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String[] header = reader.readLine().split("\t");
+            List<byte[]> leafList = new ArrayList<byte[]>();
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                leafList.add(fromHex(line.trim()));
+            }
+            ChunkTree tree = new ChunkTree(Long.parseLong(header[0]), Integer.parseInt(header[1]), header[2],
+                                           leafList.toArray(new byte[leafList.size()][]));
+            if (! Digester.toHex(tree.root()).equals(header[3])) {
+                throw new IOException("Corrupt chunk tree (root mismatch): " + file.getPath());
+            }
+            return tree;
+        } catch (RuntimeException rtE) {
+            throw new IOException("Malformed chunk tree: " + file.getPath(), rtE);
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Saves a complete tree
+     * 
+     * @param file the tree file
+     * @throws IOException
+     */
+    void save(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writer.write(size + "\t" + chunkSize + "\t" + algorithm + "\t" + Digester.toHex(root()) + "\n");
+            for (byte[] leafDigest : leaves) {
+                writer.write(Digester.toHex(leafDigest) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    long size() {
+        return size;
+    }
+    
+    int chunkSize() {
+        return chunkSize;
+    }
+    
+    String algorithm() {
+        return algorithm;
+    }
+    
+    public void observe(long offset, ByteBuffer data) {
+        ByteBuffer rest = data.duplicate();
+        long pos = offset;
+        while (rest.hasRemaining()) {
+            long leafEnd = (long)(leaf + 1) * chunkSize;
+            int length = (int)Math.min(rest.remaining(), leafEnd - pos);
+            ByteBuffer part = rest.duplicate();
+            part.limit(part.position() + length);
+            leafMd.update(part);
+            rest.position(rest.position() + length);
+            pos += length;
+            if (pos == leafEnd && leaf < leaves.length - 1) {
+                leaves[leaf++] = leafMd.digest();
+            }
+        }
+    }
+    
+    /**
+     * Completes a tree after all content has been observed
+     */
+    void complete() {
+        leaves[leaf] = leafMd.digest();
+        leafMd = null;
+    }
+    
+    /**
+     * Returns the root digest of the tree
+     */
+    byte[] root() {
+        byte[][] level = leaves;
+        MessageDigest md = null;
+        try {
+            md = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsaE) {
+            // cannot occur - tree was built with the algorithm
+            throw new IllegalStateException(nsaE);
+        }
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                md.update(level[2 * i]);
+                if (2 * i + 1 < level.length) {
+                    md.update(level[2 * i + 1]);
+                }
+                parents[i] = md.digest();
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+    
+    /**
+     * Returns the byte ranges in which other content differs from this
+     * tree's, adjacent chunks merged, as 'first-last' strings. The trees
+     * must have the same chunk size.
+     * 
+     * @param other the tree of the other content
+     * @return list of differing ranges, empty if content identical
+     */
+    List<String> differences(ChunkTree other) {
+        List<String> ranges = new ArrayList<String>();
+        if (size == other.size && MessageDigest.isEqual(root(), other.root())) {
+            return ranges;
+        }
+        int count = Math.max(leaves.length, other.leaves.length);
+        int first = -1;
+        for (int i = 0; i <= count; i++) {
+            boolean differs = i < count &&
+                              (i >= leaves.length || i >= other.leaves.length ||
+                               ! MessageDigest.isEqual(leaves[i], other.leaves[i]));
+            if (differs && first < 0) {
+                first = i;
+            } else if (! differs && first >= 0) {
+                long end = Math.min((long)i * chunkSize, Math.max(size, other.size)) - 1L;
+                ranges.add(((long)first * chunkSize) + "-" + end);
+                first = -1;
+            }
+        }
+        if (ranges.isEmpty()) {
+            // only the sizes differ, at a chunk boundary
+            ranges.add(Math.min(size, other.size) + "-" + (Math.max(size, other.size) - 1L));
+        }
+        return ranges;
+    }
+    
+    private static int chunks(long size, int chunkSize) {
+        return (int)Math.max(1L, (size + chunkSize - 1L) / chunkSize);
+    }
+    
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException intE) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted computing chunk tree");
+        } catch (ExecutionException execE) {
+            Throwable cause = execE.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("Chunk digest failed: " + cause.getMessage(), cause);
+        }
+    }
+    
+    private static byte[] fromHex(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digester computes message digests of bitstream content - one or more
+ * algorithms in a single pass over the content - either from
+ * an input stream, or - when the content is a local file - directly from
+ * a FileChannel using large direct buffers or memory-mapped regions.
+ * Digests are returned as lower-case hex strings, the form DSpace
+ * records for ingest checksums. Reads may be rate-limited by a Throttle,
+ * and Observers may be given each piece of content as it is digested.
+ * Time spent reading and digesting may be recorded in FixityStats (for
+ * memory-mapped files, reading happens within digesting). Digester also
+ * holds the digest helpers shared by the other classes of this package.
+ *
+ * @author richardrodgers
+ */
+class Digester
+{
+    // size of memory-mapped regions
+    private static final long MAP_SIZE = 64L * 1024L * 1024L;
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+    
+    /**
+     * Returns the digests of stream content. The stream is not closed.
+     * 
+     * @param in the content stream
+     * @param algorithms the digest algorithms
+     * @param bufferSize the read buffer size in bytes
+     * @param throttle the read rate limiter, null if unlimited
+     * @param stats statistics recording read and digest time, null if none
+     * @param observers observers of content (null entries ignored)
+     * @return the hex digests, in algorithm order
+     * @throws IOException
+     */
+    static String[] digest(InputStream in, String[] algorithms, int bufferSize,
+                           Throttle throttle, FixityStats stats, Observer... observers)
+            throws IOException {
+        MessageDigest[] mds = messageDigests(algorithms);
+        byte[] buffer = new byte[bufferSize];
+        long offset = 0L;
+        int read = 0;
+        long mark = System.nanoTime();
+        while ((read = in.read(buffer)) != -1) {
+            long readTime = System.nanoTime() - mark;
+            if (throttle != null) {
+                throttle.acquire(read);
+            }
+            long digestStart = System.nanoTime();
+            offset = update(mds, ByteBuffer.wrap(buffer, 0, read), offset, observers);
+            mark = System.nanoTime();
+            if (stats != null) {
+                stats.recordRead(readTime);
+                stats.recordDigest(mark - digestStart);
+            }
+        }
+        return toHex(mds);
+    }
+    
+    /**
+     * Returns the digests of file content, read through a FileChannel
+     * 
+     * @param file the content file
+     * @param algorithms the digest algorithms
+     * @param bufferSize the direct buffer size in bytes (or mapped slice size)
+     * @param mapped if true, memory-map the file rather than read it
+     * @param throttle the read rate limiter, null if unlimited
+     * @param stats statistics recording read and digest time, null if none
+     * @param observers observers of content (null entries ignored)
+     * @return the hex digests, in algorithm order
+     * @throws IOException
+     */
+    static String[] digest(File file, String[] algorithms, int bufferSize, boolean mapped,
+                           Throttle throttle, FixityStats stats, Observer... observers)
+            throws IOException {
+        MessageDigest[] mds = messageDigests(algorithms);
+        long offset = 0L;
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            if (mapped) {
+                long size = channel.size();
+                for (long pos = 0L; pos < size; pos += MAP_SIZE) {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                                                          Math.min(MAP_SIZE, size - pos));
+                    // digest in slices, so throttling is no coarser than reading
+                    int end = region.limit();
+                    while (region.position() < end) {
+                        int slice = Math.min(bufferSize, end - region.position());
+                        if (throttle != null) {
+                            throttle.acquire(slice);
+                        }
+                        region.limit(region.position() + slice);
+                        long digestStart = System.nanoTime();
+                        offset = update(mds, region, offset, observers);
+                        if (stats != null) {
+                            stats.recordDigest(System.nanoTime() - digestStart);
+                        }
+                    }
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+                int read = 0;
+                long mark = System.nanoTime();
+                while ((read = channel.read(buffer)) != -1) {
+                    long readTime = System.nanoTime() - mark;
+                    if (throttle != null) {
+                        throttle.acquire(read);
+                    }
+                    long digestStart = System.nanoTime();
+                    buffer.flip();
+                    offset = update(mds, buffer, offset, observers);
+                    buffer.clear();
+                    mark = System.nanoTime();
+                    if (stats != null) {
+                        stats.recordRead(readTime);
+                        stats.recordDigest(mark - digestStart);
+                    }
+                }
+            }
+        } finally {
+            fis.close();
+        }
+        return toHex(mds);
+    }
+    
+    // feeds the remaining buffer content to each digest and observer,
+    // returning the content offset following the buffer. The buffer is
+    // left consumed, whether or not the observers consume it.
+    private static long update(MessageDigest[] mds, ByteBuffer buffer, long offset, Observer[] observers) {
+        int start = buffer.position();
+        int length = buffer.remaining();
+        for (MessageDigest md : mds) {
+            buffer.position(start);
+            md.update(buffer);
+        }
+        for (Observer observer : observers) {
+            if (observer != null) {
+                buffer.position(start);
+                observer.observe(offset, buffer);
+            }
+        }
+        buffer.position(start + length);
+        return offset + length;
+    }
+    
+    private static MessageDigest[] messageDigests(String[] algorithms) throws IOException {
+        MessageDigest[] mds = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            mds[i] = messageDigest(algorithms[i]);
+        }
+        return mds;
+    }
+    
+    /**
+     * Returns a new message digest
+     * 
+     * @param algorithm the digest algorithm
+     * @return the digest
+     * @throws IOException if the algorithm is unknown
+     */
+    static MessageDigest messageDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IOException("Unknown digest algorithm: " + algorithm, nsaE);
+        }
+    }
+    
+    /**
+     * Returns the SHA-1 digest of strings, e.g. to name a file by a key.
+     * The strings are UTF-8 encoded, and separated by a zero byte.
+     * 
+     * @param parts the strings
+     * @return the hex digest
+     */
+    static String sha1Hex(String... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    md.update((byte)0);
+                }
+                md.update(parts[i].getBytes("UTF-8"));
+            }
+            return toHex(md.digest());
+        } catch (NoSuchAlgorithmException nsaE) {
+            // every Java platform must support SHA-1
+            throw new IllegalStateException(nsaE);
+        } catch (IOException ioE) {
+            // every Java platform must support UTF-8
+            throw new IllegalStateException(ioE);
+        }
+    }
+    
+    private static String[] toHex(MessageDigest[] mds) {
+        String[] digests = new String[mds.length];
+        for (int i = 0; i < mds.length; i++) {
+            digests[i] = toHex(mds[i].digest());
+        }
+        return digests;
+    }
+    
+    /**
+     * Observer is given each piece of content digested, in content order.
+     */
+    interface Observer {
+        /**
+         * Observes a piece of content
+         * 
+         * @param offset the content offset of the first byte in data
+         * @param data the content, from its position to its limit
+         */
+        void observe(long offset, ByteBuffer data);
+    }
+    
+    static String toHex(byte[] data) {
+        char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            chars[2 * i] = HEX_CHARS[(data[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_CHARS[data[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
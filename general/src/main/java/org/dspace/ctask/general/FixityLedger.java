@@ -0,0 +1,171 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * FixityLedger is a simple file-backed store recording, for each bitstream
+ * (keyed by its assetstore internal id), when it was last verified and with
+ * what result. The file is an append-only journal of tab-separated lines:
+ * 
+ * internalId  verifiedMillis  OK|FAIL
+ * 
+ * The latest line for a key wins. The whole ledger is held in memory, and
+ * the journal is compacted when it is loaded if superseded lines dominate.
+ * Ledgers are shared by path: all tasks using the same file use one
+ * FixityLedger (so the file is loaded, and compacted, only once per JVM),
+ * and any buffered records are written when the JVM exits. Thread-safe.
+ *
+ * @author richardrodgers
+ */
+class FixityLedger implements Flushable
+{
+    /** log4j category */
+    private static final Logger log = Logger.getLogger(FixityLedger.class);
+    // open ledgers by canonical path
+    private static final Map<String, FixityLedger> ledgers = new HashMap<String, FixityLedger>();
+    // journal file
+    private final File file;
+    // current state of ledger
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    // appending journal writer
+    private BufferedWriter journal = null;
+    
+    private FixityLedger(File file) throws IOException {
+        this.file = file;
+        int lines = 0;
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    if (parse(line)) {
+                        ++lines;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } else if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        if (lines > 2 * entries.size() + 1000) {
+            compact();
+        }
+        journal = new BufferedWriter(new FileWriter(file, true));
+    }
+    
+    /**
+     * Returns the ledger kept in a file, opening it if needed
+     * 
+     * @param file the journal file
+     * @return the ledger
+     * @throws IOException
+     */
+    static FixityLedger open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (ledgers) {
+            FixityLedger ledger = ledgers.get(path);
+            if (ledger == null) {
+                ledger = new FixityLedger(file);
+                ledgers.put(path, ledger);
+                AtExit.flush(ledger, "fixity ledger");
+            }
+            return ledger;
+        }
+    }
+    
+    /**
+     * Returns the ledger entry for a bitstream
+     * 
+     * @param key the bitstream internal id
+     * @return the entry, or null if bitstream never verified
+     */
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+    
+    /**
+     * Records a verification of a bitstream now
+     * 
+     * @param key the bitstream internal id
+     * @param ok true if checksums agreed
+     * @throws IOException
+     */
+    synchronized void record(String key, boolean ok) throws IOException {
+        Entry entry = new Entry(System.currentTimeMillis(), ok);
+        entries.put(key, entry);
+        journal.write(format(key, entry));
+    }
+    
+    /**
+     * Writes any buffered records to the journal file
+     * 
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        journal.flush();
+    }
+    
+    private boolean parse(String line) {
+        String[] parts = line.split("\t");
+        if (parts.length != 3) {
+            log.error("Skipping malformed ledger line: " + line);
+            return false;
+        }
+        try {
+            entries.put(parts[0], new Entry(Long.parseLong(parts[1]), "OK".equals(parts[2])));
+        } catch (NumberFormatException nfE) {
+            log.error("Skipping malformed ledger line: " + line);
+            return false;
+        }
+        return true;
+    }
+    
+    private String format(String key, Entry entry) {
+        return key + "\t" + entry.verified + "\t" + (entry.ok ? "OK" : "FAIL") + "\n";
+    }
+    
+    private void compact() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile));
+        try {
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                writer.write(format(mapEntry.getKey(), mapEntry.getValue()));
+            }
+        } finally {
+            writer.close();
+        }
+        // replace the journal in one step, so a crash never loses it
+        if (! tmpFile.renameTo(file)) {
+            log.error("Unable to compact ledger: " + file.getPath());
+            tmpFile.delete();
+        }
+    }
+    
+    static class Entry {
+        public final long verified; // time of last verification (millis)
+        public final boolean ok;    // whether checksums agreed
+        
+        public Entry(long verified, boolean ok) {
+            this.verified = verified;
+            this.ok = ok;
+        }
+    }
+}
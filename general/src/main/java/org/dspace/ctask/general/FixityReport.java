@@ -0,0 +1,148 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FixityReport is an append-only, streaming structured report of bitstream
+ * verifications, one record per bitstream, in CSV or JSON Lines format.
+ * Records are buffered and written in batches, so memory use stays flat
+ * however many bitstreams are verified. Reports are shared by path: all
+ * tasks writing to the same file use one FixityReport, and any unwritten
+ * records are written when the JVM exits. Record fields are:
+ * 
+ * handle, bundle, seqId, algorithm, expected, actual, bytes, elapsedMs, result
+ *
+ * @author richardrodgers
+ */
+class FixityReport implements Flushable
+{
+    private static final String[] FIELDS = { "handle", "bundle", "seqId", "algorithm", "expected",
+                                             "actual", "bytes", "elapsedMs", "result" };
+    // open reports by canonical path
+    private static final Map<String, FixityReport> reports = new HashMap<String, FixityReport>();
+    // report writer
+    private final Writer writer;
+    // true if JSON Lines, else CSV
+    private final boolean json;
+    // records written before flushing
+    private final int batchSize;
+    // records written since last flush
+    private int pending = 0;
+    
+    private FixityReport(File file, boolean json, int batchSize) throws IOException {
+        this.json = json;
+        this.batchSize = batchSize;
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        boolean empty = ! file.exists() || file.length() == 0L;
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        if (empty && ! json) {
+            writer.write(csvLine(FIELDS));
+        }
+    }
+    
+    /**
+     * Returns the report writing to a file, opening it if needed
+     * 
+     * @param file the report file
+     * @param format 'csv' or 'jsonl'
+     * @param batchSize records written between flushes
+     * @return the report
+     * @throws IOException
+     */
+    static FixityReport open(File file, String format, int batchSize) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (reports) {
+            FixityReport report = reports.get(path);
+            if (report == null) {
+                report = new FixityReport(file, "jsonl".equalsIgnoreCase(format), batchSize);
+                reports.put(path, report);
+                AtExit.flush(report, "fixity report");
+            }
+            return report;
+        }
+    }
+    
+    /**
+     * Writes a record, flushing if a batch is complete
+     * 
+     * @param values field values, in FIELDS order
+     * @throws IOException
+     */
+    synchronized void write(Object... values) throws IOException {
+        writer.write(json ? jsonLine(values) : csvLine(values));
+        if (++pending >= batchSize) {
+            flush();
+        }
+    }
+    
+    /**
+     * Writes any buffered records to the report file
+     * 
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        writer.flush();
+        pending = 0;
+    }
+    
+    private String csvLine(Object[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            String value = (values[i] != null) ? values[i].toString() : "";
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 ||
+                value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                sb.append("\"").append(value.replace("\"", "\"\"")).append("\"");
+            } else {
+                sb.append(value);
+            }
+        }
+        return sb.append("\n").toString();
+    }
+    
+    private String jsonLine(Object[] values) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append("\"").append(FIELDS[i]).append("\":");
+            if (values[i] instanceof Number) {
+                sb.append(values[i]);
+                continue;
+            }
+            sb.append("\"");
+            String value = (values[i] != null) ? values[i].toString() : "";
+            for (char c : value.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int)c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append("\"");
+        }
+        return sb.append("}\n").toString();
+    }
+}
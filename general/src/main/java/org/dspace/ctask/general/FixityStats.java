@@ -0,0 +1,198 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * FixityStats accumulates CheckChecksum run statistics - counts of items,
+ * bitstreams, mismatches and bytes, time spent reading and digesting
+ * content, and histograms of bitstream and item verification times - and
+ * exposes them through JMX. Statistics are shared by name: all instances
+ * of a task update one FixityStats, registered once per JVM, so figures
+ * accumulate across runs until reset. Safe for concurrent update by workers.
+ *
+ * @author richardrodgers
+ */
+public class FixityStats implements FixityStatsMBean
+{
+    /** log4j category */
+    private static final Logger log = Logger.getLogger(FixityStats.class);
+    private static final int BUCKETS = 24;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // registered statistics by name
+    private static final Map<String, FixityStats> registered = new HashMap<String, FixityStats>();
+    // start of statistics period
+    private volatile long started = System.currentTimeMillis();
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong bitstreams = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong digestNanos = new AtomicLong();
+    private final AtomicLongArray bitstreamMillis = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray itemMillis = new AtomicLongArray(BUCKETS);
+    
+    /**
+     * Returns the statistics of a name, creating them and registering them
+     * with the platform MBean server on first use.
+     * 
+     * @param name the name of the statistics (e.g. the task id)
+     * @return the statistics
+     */
+    static FixityStats open(String name) {
+        synchronized (registered) {
+            FixityStats stats = registered.get(name);
+            if (stats == null) {
+                stats = new FixityStats();
+                registered.put(name, stats);
+                try {
+                    ObjectName objName = new ObjectName("org.dspace.ctask.general:type=FixityStats,name=" +
+                                                        ObjectName.quote(name));
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(stats, objName);
+                } catch (JMException jmE) {
+                    // statistics still appear in task results
+                    log.error("Unable to register fixity statistics MBean: " + jmE.getMessage());
+                }
+            }
+            return stats;
+        }
+    }
+    
+    void recordRead(long nanos) {
+        readNanos.addAndGet(nanos);
+    }
+    
+    void recordDigest(long nanos) {
+        digestNanos.addAndGet(nanos);
+    }
+    
+    void recordBitstream(long length, long millis, boolean ok) {
+        bitstreams.incrementAndGet();
+        bytes.addAndGet(length);
+        if (! ok) {
+            mismatches.incrementAndGet();
+        }
+        bitstreamMillis.incrementAndGet(bucket(millis));
+    }
+    
+    void recordItem(long millis) {
+        items.incrementAndGet();
+        itemMillis.incrementAndGet(bucket(millis));
+    }
+    
+    /**
+     * Returns a one-line summary of the statistics
+     */
+    String summary() {
+        return "run: " + getItemsChecked() + " items " + getBitstreamsChecked() + " bitstreams " +
+               getMismatches() + " mismatches " + (getBytesHashed() / (1024L * 1024L)) + " MB " +
+               getThroughputKBps() + " KB/s read: " + getReadMillis() + " ms digest: " +
+               getDigestMillis() + " ms";
+    }
+    
+    // ---- FixityStatsMBean methods ---- //
+    
+    public long getItemsChecked() {
+        return items.get();
+    }
+    
+    public long getBitstreamsChecked() {
+        return bitstreams.get();
+    }
+    
+    public long getMismatches() {
+        return mismatches.get();
+    }
+    
+    public long getBytesHashed() {
+        return bytes.get();
+    }
+    
+    public long getReadMillis() {
+        return readNanos.get() / NANOS_PER_MILLI;
+    }
+    
+    public long getDigestMillis() {
+        return digestNanos.get() / NANOS_PER_MILLI;
+    }
+    
+    public long getThroughputKBps() {
+        long elapsed = Math.max(System.currentTimeMillis() - started, 1L);
+        return bytes.get() * 1000L / elapsed / 1024L;
+    }
+    
+    public long[] getBitstreamMillisHistogram() {
+        return snapshot(bitstreamMillis);
+    }
+    
+    public long[] getItemMillisHistogram() {
+        return snapshot(itemMillis);
+    }
+    
+    public long getBitstreamMillisP50() {
+        return percentile(bitstreamMillis, 0.50);
+    }
+    
+    public long getBitstreamMillisP99() {
+        return percentile(bitstreamMillis, 0.99);
+    }
+    
+    public void reset() {
+        items.set(0L);
+        bitstreams.set(0L);
+        mismatches.set(0L);
+        bytes.set(0L);
+        readNanos.set(0L);
+        digestNanos.set(0L);
+        for (int i = 0; i < BUCKETS; i++) {
+            bitstreamMillis.set(i, 0L);
+            itemMillis.set(i, 0L);
+        }
+        started = System.currentTimeMillis();
+    }
+    
+    private static int bucket(long millis) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(millis, 0L)));
+    }
+    
+    private static long[] snapshot(AtomicLongArray histogram) {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+    
+    // returns upper bound (ms) of bucket containing the percentile
+    private static long percentile(AtomicLongArray histogram, double fraction) {
+        long[] counts = snapshot(histogram);
+        long total = 0L;
+        for (long count : counts) {
+            total += count;
+        }
+        long rank = (long)Math.ceil(total * fraction);
+        long cumulative = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank && cumulative > 0L) {
+                return 1L << i;
+            }
+        }
+        return 0L;
+    }
+}
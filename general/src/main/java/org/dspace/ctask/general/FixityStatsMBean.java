@@ -0,0 +1,42 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+/**
+ * JMX management interface for CheckChecksum run statistics.
+ * Histograms are counts in power-of-2 millisecond buckets: bucket 0
+ * counts times under 1 ms, bucket i times in [2^(i-1), 2^i) ms.
+ *
+ * @author richardrodgers
+ */
+public interface FixityStatsMBean
+{
+    long getItemsChecked();
+    
+    long getBitstreamsChecked();
+    
+    long getMismatches();
+    
+    long getBytesHashed();
+    
+    long getReadMillis();
+    
+    long getDigestMillis();
+    
+    long getThroughputKBps();
+    
+    long[] getBitstreamMillisHistogram();
+    
+    long[] getItemMillisHistogram();
+    
+    long getBitstreamMillisP50();
+    
+    long getBitstreamMillisP99();
+    
+    void reset();
+}
@@ -0,0 +1,214 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * JsonExtractor finds datamap values in a JSON response document as it is
+ * read, using the Jackson streaming parser. Datamap expressions are in a
+ * JSONPath subset: '$' (the document) followed by member steps ('.name'
+ * or "['name']"), array index steps ('[0]'), wildcard steps ('.*' or '[*]')
+ * and descendant steps ('..name', '..*' or '..[0]'). Values are the text of
+ * matching strings, numbers and booleans, in document order; matching
+ * objects, arrays and nulls yield no value. Thread-safe.
+ *
+ * @author richardrodgers
+ */
+class JsonExtractor
+{
+    private static final JsonFactory factory = new JsonFactory();
+    // compiled datamap paths, in datamap order
+    private final Step[][] paths;
+
+    private JsonExtractor(Step[][] paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * Compiles datamap expressions for JSON extraction
+     *
+     * @param exprs the JSONPath expressions, in datamap order
+     * @return the extractor, or null if any expression is not supported
+     */
+    static JsonExtractor compile(List<String> exprs) {
+        Step[][] paths = new Step[exprs.size()][];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = compilePath(exprs.get(i).trim());
+            if (paths[i] == null) {
+                return null;
+            }
+        }
+        return new JsonExtractor(paths);
+    }
+
+    /**
+     * Extracts the values of each expression from a response document
+     *
+     * @param in the response document content
+     * @return the values of each expression, in expression order
+     * @throws IOException if the document cannot be read
+     */
+    List<List<String>> extract(InputStream in) throws IOException {
+        List<List<String>> data = ServiceResponse.newData(paths.length);
+        // member names (String) and array indexes (Integer) leading to current value
+        List<Object> position = new ArrayList<Object>();
+        // containers enclosing current value
+        LinkedList<Container> containers = new LinkedList<Container>();
+        JsonParser parser = factory.createParser(in);
+        try {
+            JsonToken token = null;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME) {
+                    containers.getFirst().member = parser.getCurrentName();
+                    continue;
+                }
+                if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    containers.removeFirst();
+                    if (containers.size() > 0) {
+                        position.remove(position.size() - 1);
+                    }
+                    continue;
+                }
+                // token begins a value
+                if (containers.size() > 0) {
+                    Container parent = containers.getFirst();
+                    position.add(parent.array ? Integer.valueOf(parent.next++) : parent.member);
+                }
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    containers.addFirst(new Container(token == JsonToken.START_ARRAY));
+                    continue;
+                }
+                if (token != JsonToken.VALUE_NULL) {
+                    for (int i = 0; i < paths.length; i++) {
+                        if (matches(paths[i], paths[i].length, position, position.size())) {
+                            data.get(i).add(parser.getText());
+                        }
+                    }
+                }
+                if (containers.size() > 0) {
+                    position.remove(position.size() - 1);
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return data;
+    }
+
+    // true if the first count steps match the first depth positions
+    private static boolean matches(Step[] steps, int count, List<Object> position, int depth) {
+        if (count == 0) {
+            return depth == 0;
+        }
+        if (depth == 0) {
+            return false;
+        }
+        Step step = steps[count - 1];
+        if (! step.matches(position.get(depth - 1))) {
+            return false;
+        }
+        if (! step.descendant) {
+            return matches(steps, count - 1, position, depth - 1);
+        }
+        for (int d = depth - 1; d >= 0; d--) {
+            if (matches(steps, count - 1, position, d)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns the steps of a path, or null if expression not supported
+    private static Step[] compilePath(String expr) {
+        if (! expr.startsWith("$")) {
+            return null;
+        }
+        List<Step> steps = new ArrayList<Step>();
+        int i = 1;
+        while (i < expr.length()) {
+            Step step = new Step();
+            if (expr.startsWith("..", i)) {
+                step.descendant = true;
+                i += 2;
+            } else if (expr.charAt(i) == '.') {
+                i++;
+            } else if (expr.charAt(i) != '[') {
+                return null;
+            }
+            if (i < expr.length() && expr.charAt(i) == '[') {
+                int end = expr.indexOf("]", i);
+                if (end < 0) {
+                    return null;
+                }
+                String sel = expr.substring(i + 1, end).trim();
+                if ("*".equals(sel)) {
+                    step.any = true;
+                } else if (sel.length() > 1 && sel.startsWith("'") && sel.endsWith("'")) {
+                    step.name = sel.substring(1, sel.length() - 1);
+                } else {
+                    try {
+                        step.index = Integer.valueOf(sel);
+                    } catch (NumberFormatException nfE) {
+                        return null;
+                    }
+                }
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < expr.length() && expr.charAt(end) != '.' && expr.charAt(end) != '[') {
+                    end++;
+                }
+                String name = expr.substring(i, end);
+                if (name.length() == 0) {
+                    return null;
+                }
+                if ("*".equals(name)) {
+                    step.any = true;
+                } else {
+                    step.name = name;
+                }
+                i = end;
+            }
+            steps.add(step);
+        }
+        return steps.toArray(new Step[0]);
+    }
+
+    private static class Container {
+        public boolean array;       // true if array, else object
+        public int next;            // index of next array element
+        public String member;       // name of current object member
+
+        public Container(boolean array) {
+            this.array = array;
+        }
+    }
+
+    private static class Step {
+        public boolean descendant;  // true if descendant ('..') step
+        public boolean any;         // true if wildcard step
+        public String name;         // member name, null if not member step
+        public Integer index;       // array index, null if not index step
+
+        public boolean matches(Object segment) {
+            if (any) {
+                return true;
+            }
+            return (name != null) ? name.equals(segment) : index.equals(segment);
+        }
+    }
+}
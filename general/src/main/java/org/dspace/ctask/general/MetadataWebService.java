@@ -7,20 +7,41 @@
  */
 package org.dspace.ctask.general;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
@@ -29,12 +50,19 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import javax.xml.XMLConstants;
 
-import org.apache.http.HttpEntity;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
 import org.w3c.dom.Document;
@@ -44,6 +72,8 @@ import org.w3c.dom.NodeList;
 
 import org.xml.sax.SAXException;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.DCValue;
 import org.dspace.content.DSpaceObject;
@@ -52,6 +82,7 @@ import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Constants;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
+import org.dspace.curate.Distributive;
 import org.dspace.curate.Mutative;
 import org.dspace.curate.Suspendable;
 
@@ -70,7 +101,10 @@ import org.dspace.curate.Suspendable;
  * 
  * Task will substitute the value of the passed item's metadata field
  * in the {parameter} position. If multiple values are present in the
- * item field, the first value is used.
+ * item field, the first value is used. A template may have several
+ * parameters, and a parameter may list alternative fields separated by '|',
+ * e.g. {dc.identifier.issn|dc.identifier.other}, the first having a value
+ * being used. Each alternative may name its own transform (see below).
  * 
  * The task uses another property (the datamap) to determine what data
  * to extract from the service response and how to use it, e.g.
@@ -89,6 +123,10 @@ import org.dspace.curate.Suspendable;
  * '=>' mapping will replace any existing values in the item field
  * '~>' mapping will add *only* if item field has no existing values
  * 
+ * Mapped fields are only rewritten, and the item only updated, when the values
+ * assigned differ from those the field has; counts of fields changed and
+ * unchanged are added to the result string.
+ * 
  * Unmapped data (without a mapping symbol) will simply be added to the task
  * result string, prepended by the XPath expression (a little prettified).
  * Each label/value pair in the result string is separated by a space, 
@@ -105,16 +143,21 @@ import org.dspace.curate.Suspendable;
  * transform.doi = match 10. trunc 60
  * 
  * This means exclude the value string up to the occurrence of '10.', then
- * truncate after 60 characters. The only transform functions currently defined:
+ * truncate after 60 characters. The transform functions currently defined
+ * (enclose arguments in ' ' when whitespace needed):
  * 
  * 'cut' <number> = remove number leading characters
  * 'trunc' <number> = remove trailing characters after number length
  * 'match' <pattern> = start match at pattern
- * 'text' <characters> = append literal characters (enclose in ' ' when whitespace needed)
+ * 'text' <characters> = append literal characters
+ * 'replace' <regex> <replacement> = replace all matches of regular expression
+ * 'lowercase' = convert to lower case
+ * 'normalize-space' = trim, and collapse internal whitespace to a single space
  * 
- * If the transform results in an invalid state (e.g. cutting more characters
- * than are in the value), the condition will be logged and the 
- * un-transformed value used.
+ * Transforms are compiled once, when the task is initialized; an invalid
+ * transform is logged and leaves values un-transformed. If the transform
+ * results in an invalid state (e.g. cutting more characters than are in
+ * the value), the condition will be logged and the un-transformed value used.
  *
  * Transforms may also be used in datamaps, e.g.
  * 
@@ -128,36 +171,101 @@ import org.dspace.curate.Suspendable;
  * 
  * Accept: text/xml||Cache-Control: no-cache
  * 
+ * If optional property 'parser' is 'stream', datamap values are extracted while
+ * the response is read, rather than from a DOM of it. Only simple paths are
+ * supported (child and descendant element steps, a final attribute step), and
+ * '(path)[1]' takes the first value only, letting reading stop early. Datamaps
+ * using other XPath (or batch lookups) are handled with the DOM.
+ * 
+ * If optional property 'format' is 'json', responses are read as JSON with a
+ * streaming parser, and datamap expressions are in a JSONPath subset, e.g.
+ * 
+ * $.message.publisher=>dc.publisher,$.message.container-title[*]
+ * 
+ * with member ('.name', "['name']"), index ('[0]'), wildcard ('.*', '[*]') and
+ * descendant ('..name') steps. Mappings and transforms behave as for XML.
+ * 
+ * The compiled configuration (template, datamap, transforms) and the services
+ * built from it (connection pool, cache, rate limits, pipeline callers) form an
+ * engine, built once per task id and shared by every instance of the task, so
+ * several curation threads may run one configuration. The engine is immutable or
+ * thread-safe throughout; response parsers are kept per thread. A lookup needing
+ * a call already in flight for the same URL (on any thread) shares that call and
+ * its response rather than repeating it; the number so coalesced is reported.
+ * 
+ * Service calls share a pool of persistent HTTP connections for the life of
+ * the engine. Optional properties 'http.maxperroute' (default 2) and
+ * 'http.maxtotal' (default 20) limit connections per host and in total, and
+ * 'http.keepalive' sets the seconds an idle connection is kept (default 30)
+ * when the service does not say. The pool (and any pipeline caller threads)
+ * is shut down when the JVM exits. Responses are requested gzip or deflate
+ * compressed, and decompressed as they are parsed, unless 'http.compress'
+ * is false.
+ * 
+ * Optional property 'http.rate' limits the calls per second to each host. Calls
+ * answered 429, 502, 503 or 504 are retried up to 'http.retries' times (default 3),
+ * holding off calls to the host as long as the Retry-After header says, or else for
+ * an exponential backoff with jitter from 'http.backoff' ms (default 1000) up to
+ * 'http.backoff.max' ms (default 60000). Retries and time throttled are reported.
+ * 
+ * Extracted response data may be cached by service call URL, so items sharing
+ * a lookup value need only one call. Property 'cache.size' sets the number of
+ * responses held in memory (default 0, no caching), 'cache.ttl' the seconds a
+ * response may be reused (default 86400), and optional 'cache.dir' a directory
+ * where responses are kept between runs. Cache hit and miss counts are reported.
+ * When a cached response has expired, and the service gave it an ETag or a
+ * Last-Modified date, the call is made conditional; if the service answers
+ * 'not modified' the cached data is reused (and renewed) without reading
+ * any document.
+ * 
+ * If optional property 'record.dir' is set, whole response documents are recorded
+ * there, gzip-compressed and named by the hash of the call URL. If 'record.mode'
+ * is 'replay', no service calls are made: documents are read from 'record.dir'
+ * instead, so datamaps may be revised and re-run without the service.
+ * 
+ * The task visits the items of a container itself. Unless pipelining or batching,
+ * items are looked up one at a time, and the first that fails or errs ends the
+ * visit, its result and status being the task's, as when the curator visits the
+ * items and suspends the task. Otherwise the result for a container summarizes
+ * the item outcomes. The optional property 'pipeline' (default 0) sets a number of
+ * service calls which may be in flight for upcoming items, while earlier responses
+ * are applied to their items in order on the curation thread.
+ * 
+ * For services accepting several lookup values per call, items in a container may
+ * be looked up in batches of 'batch.size' items (default 0, no batching), whose
+ * distinct values are joined by 'batch.separator' (default ',') into the
+ * 'batch.template' URL.
+ * XPath 'batch.record' selects each record in the response, and 'batch.key' (relative
+ * to the record) its lookup value; datamap expressions are evaluated within the record.
+ * 
  * @author richardrodgers
  */
+@Distributive
 @Mutative
 @Suspendable
-public class MetadataWebService extends AbstractCurationTask implements NamespaceContext
+public class MetadataWebService extends AbstractCurationTask
 {
     /** log4j category */
     private static final Logger log = Logger.getLogger(MetadataWebService.class);
-    // transform token parsing pattern
-    private static Pattern ttPattern = Pattern.compile("\'([^\']*)\'|(\\S+)");
-    // URL of web service with template parameters
-    private String urlTemplate = null;
-    // template parameter
-    private String templateParam = null;
-    // Item metadata field to use in service call
-    private String lookupField = null;
-    // Optional transformation of lookupField
-    private String lookupTransform = null;
-    // response data to map/record
-    private List<DataInfo> dataList = null;
-    // response document parsing tools
-    private DocumentBuilder docBuilder = null;
-    // language for metadata fields assigned
-    private String lang = null;
-    // field separator in result string
-    private String fieldSeparator = null;
-    // optional XML namespace map
-    private Map<String, String> nsMap = new HashMap<String, String>();
-    // optional HTTP headers
-    private Map<String, String> headers = new HashMap<String, String>();
+    // engines shared by all task instances, by task id
+    private static final Map<String, Engine> engines = new HashMap<String, Engine>();
+    // template parameter syntax: anything between braces
+    private static final Pattern paramPattern = Pattern.compile("\\{([^}]*)\\}");
+    // configuration and services of this task
+    private Engine engine = null;
+    // lookups awaiting completion, in item order
+    private final LinkedList<Lookup> pending = new LinkedList<Lookup>();
+    // batch accumulating lookup values
+    private Batch batch = null;
+    // outcomes of lookups for a container
+    private int succeeded = 0;
+    private int failed = 0;
+    private int errors = 0;
+    // successful lookups which did, and did not, change item metadata
+    private int updated = 0;
+    private int unchanged = 0;
+    // first lookup failing when looking up items one at a time, if any
+    private Lookup failure = null;
     
     /**
      * Initializes task
@@ -167,47 +275,12 @@ public class MetadataWebService extends AbstractCurationTask implements Namespac
     @Override
     public void init(Curator curator, String taskId) throws IOException {
     	super.init(curator, taskId);
-    	lang = ConfigurationManager.getProperty("default.language");
-        String fldSep = taskProperty("separator");
-        fieldSeparator = (fldSep != null) ? fldSep : " ";
-    	urlTemplate = taskProperty("template");
-    	templateParam = urlTemplate.substring(urlTemplate.indexOf("{") + 1,
-    			                              urlTemplate.indexOf("}"));
-    	String[] parsed = parseTransform(templateParam);
-    	lookupField = parsed[0];
-    	lookupTransform = parsed[1];
-    	dataList = new ArrayList<DataInfo>();
-    	for (String entry : taskProperty("datamap").split(",")) {
-    		entry = entry.trim();
-    		String src = entry;
-    		String mapping = null;
-    		String field = null;
-    		int mapIdx = getMapIndex(entry);
-    		if (mapIdx > 0) {
-    			src = entry.substring(0, mapIdx);
-    			mapping = entry.substring(mapIdx, mapIdx + 2);
-    			field = entry.substring(mapIdx + 2);
-    		}
-    		int slIdx = src.lastIndexOf("/");
-        	String label = (slIdx > 0) ? src.substring(slIdx + 1) : src;
-    		dataList.add(new DataInfo(src, label, mapping, field));
-    	}
-        String hdrs = taskProperty("headers");
-        if (hdrs != null) {
-            for (String header : hdrs.split("\\|\\|")) {
-                int split = header.indexOf(":");
-                headers.put(header.substring(0, split).trim(), header.substring(split + 1).trim());
-            }
-        }
-    	// initialize response document parser
-    	DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    	factory.setNamespaceAware(true);
-    	try {
-    		docBuilder = factory.newDocumentBuilder();
-    	} catch (ParserConfigurationException pcE) {
-    		log.error("caught exception: " + pcE);
-    		// no point in continuing
-    		throw new IOException(pcE.getMessage(), pcE);
+    	synchronized (engines) {
+    	    engine = engines.get(taskId);
+    	    if (engine == null) {
+    	        engine = new Engine(this);
+    	        engines.put(taskId, engine);
+    	    }
     	}
     }
     
@@ -219,126 +292,258 @@ public class MetadataWebService extends AbstractCurationTask implements Namespac
      */
     @Override
     public int perform(DSpaceObject dso) throws IOException  {
-    	
-    	int status = Curator.CURATE_SKIP;
-    	StringBuilder resultSb = new StringBuilder();
-    	
         if (dso.getType() == Constants.ITEM) {
-            Item item = (Item)dso;
-            String itemId = item.getHandle();
-            if (itemId == null) {
-            	// we are still in workflow - no handle assigned - try title
-            	DCValue[] titleDc = item.getMetadata("dc", "title", null, Item.ANY);
-            	String title = (titleDc.length > 0) ? titleDc[0].value : "untitled - dbId: " + item.getID();
-            	itemId = "Workflow item: " + title;
-            } else {
-                itemId = "handle: " + itemId;
-            }
-            resultSb.append(itemId);
-            // Only proceed if item has a value for service template parameter
-            DCValue[] dcVals = item.getMetadata(lookupField);
-            if (dcVals.length > 0 && dcVals[0].value.length() > 0) {
-            	String value = transform(dcVals[0].value, lookupTransform);
-            	status = callService(value, item, resultSb);
-            } else {
-            	resultSb.append(" lacks metadata value required for service: ").append(lookupField);
-            	status = Curator.CURATE_FAIL;
+            Lookup lookup = prepare((Item)dso);
+            complete(lookup);
+            setResult(lookup.resultSb.toString());
+            return lookup.status;
+        }
+        succeeded = failed = errors = updated = unchanged = 0;
+        failure = null;
+        try {
+            distribute(dso);
+            if (batch != null) {
+                dispatch(batch);
             }
+            while (pending.size() > 0) {
+                complete(pending.removeFirst());
+            }
+        } finally {
+            // abandon batch calls for any items not reached; single calls
+            // may be shared with other lookups, so are left to finish
+            for (Lookup lookup : pending) {
+                if (lookup.batch != null && lookup.batch.call != null) {
+                    lookup.batch.call.cancel(true);
+                }
+            }
+            pending.clear();
+            batch = null;
+        }
+        if (failure != null) {
+            setResult(failure.resultSb.toString());
+            return failure.status;
+        }
+        int count = succeeded + failed + errors;
+        if (count == 0) {
+            setResult("Object skipped");
+            return Curator.CURATE_SKIP;
+        }
+        setResult(count + " items: " + succeeded + " succeeded, " + failed +
+                  " failed, " + errors + " errors; " + updated + " updated, " +
+                  unchanged + " unchanged");
+        if (errors > 0) {
+            return Curator.CURATE_ERROR;
+        }
+        return (failed > 0) ? Curator.CURATE_FAIL : Curator.CURATE_SUCCESS;
+    }
+    
+    /**
+     * Perform the curation task upon an item in a container. When pipelining
+     * or batching, the service call is dispatched and the item completed
+     * later, in order; otherwise the item is completed now.
+     *
+     * @param item the DSpace item
+     * @throws SQLException
+     * @throws IOException
+     */
+    @Override
+    protected void performItem(Item item) throws SQLException, IOException {
+        if (failure != null) {
+            // suspended, so visit no more items
+            return;
+        }
+        Lookup lookup = prepare(item);
+        if (lookup.callUrl != null && lookup.response == null) {
+            if (engine.batchSize > 0) {
+                if (batch == null) {
+                    batch = new Batch();
+                }
+                lookup.batch = batch;
+                if (! batch.values.contains(lookup.value)) {
+                    batch.values.add(lookup.value);
+                }
+                // count items, not values, so repeated values cannot grow
+                // the lookups awaiting an undispatched batch without bound
+                if (++batch.lookups == engine.batchSize) {
+                    dispatch(batch);
+                    batch = null;
+                }
+            } else if (engine.pipeline > 0) {
+                lookup.call = engine.call(lookup.callUrl, true);
+            }
+        }
+        pending.addLast(lookup);
+        // bound the calls in flight, completing the oldest first
+        while (pending.size() > engine.window && pending.getFirst().dispatched()) {
+            complete(pending.removeFirst());
+        }
+        if (engine.pipeline == 0 && engine.batchSize == 0 &&
+            lookup.status != Curator.CURATE_SUCCESS) {
+            // looking up one at a time, so suspend at the first failure
+            failure = lookup;
+        }
+    }
+    
+    private void dispatch(Batch batch) {
+        batch.callUrl = engine.batchUrl(batch.values);
+        if (engine.pipeline > 0) {
+            batch.call = engine.submitBatch(batch.callUrl, batch.resultSb);
+        }
+        batch.dispatched = true;
+    }
+    
+    private Lookup prepare(Item item) {
+        Lookup lookup = new Lookup(item);
+        StringBuilder resultSb = lookup.resultSb;
+        String itemId = item.getHandle();
+        if (itemId == null) {
+            // we are still in workflow - no handle assigned - try title
+            DCValue[] titleDc = item.getMetadata("dc", "title", null, Item.ANY);
+            String title = (titleDc.length > 0) ? titleDc[0].value : "untitled - dbId: " + item.getID();
+            itemId = "Workflow item: " + title;
         } else {
-           resultSb.append("Object skipped");
+            itemId = "handle: " + itemId;
         }
-        report(resultSb.toString());
-        setResult(resultSb.toString());
-        return status;
+        resultSb.append(itemId);
+        // Only proceed if item has a value for every service template parameter
+        String[] values = engine.lookupValues(item);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                resultSb.append(" lacks metadata value required for service: ").append(engine.params.get(i).fields());
+                lookup.status = Curator.CURATE_FAIL;
+                return lookup;
+            }
+        }
+        // batches are of values of the (single) parameter
+        lookup.value = values[0];
+        lookup.callUrl = engine.callUrl(values);
+        lookup.response = (engine.cache != null) ? engine.cache.get(lookup.callUrl) : null;
+        return lookup;
     }
     
-    private int callService(String value, Item item, StringBuilder resultSb) throws IOException {
-    	
-    	String callUrl = urlTemplate.replaceAll("\\{" + templateParam + "\\}", value);
-    	HttpClient client = new DefaultHttpClient();
-    	HttpGet req = new HttpGet(callUrl);
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            req.addHeader(entry.getKey(), entry.getValue());
-        }
-    	HttpResponse resp = client.execute(req);
-    	int status = Curator.CURATE_ERROR;
-    	int statusCode = resp.getStatusLine().getStatusCode();
-    	if (statusCode == HttpStatus.SC_OK) {
-    		HttpEntity entity = resp.getEntity();
-    		if (entity != null) {
-    			// boiler-plate handling taken from Apache 4.1 javadoc
-    			InputStream instream = entity.getContent();
-                try {
-                	Document doc = docBuilder.parse(instream);
-                	status = processResponse(doc, item, resultSb);
-            	} catch (SAXException saxE) {
-            		log.error("caught exception: " + saxE);
-            		resultSb.append(" unable to read response document");
-                } catch (RuntimeException ex) {
-                	// In case of an unexpected exception you may want to abort
-                	// the HTTP request in order to shut down the underlying
-                	// connection and release it back to the connection manager.
-                	req.abort();
-                	log.error("caught exception: " + ex);
-                	throw ex;
-                } finally {
-                	// Closing the input stream will trigger connection release
-                	instream.close();
-                }
-                // When HttpClient instance is no longer needed,
-                // shut down the connection manager to ensure
-                // immediate deallocation of all system resources
-                client.getConnectionManager().shutdown();
-    		} else {
-    			log.error(" obtained no valid service response");
-    			resultSb.append("no service response");
-    		}
-    	} else {
-    		log.error("service returned non-OK status: " + statusCode);
-    		resultSb.append("no service response");
-    	}
-    	return status;
+    private void complete(Lookup lookup) throws IOException {
+        StringBuilder resultSb = lookup.resultSb;
+        if (lookup.callUrl != null) {
+            if (lookup.response == null) {
+                if (lookup.batch != null) {
+                    lookup.response = demultiplex(lookup);
+                    if (lookup.response != null && engine.cache != null) {
+                        engine.cache.put(lookup.callUrl, lookup.response);
+                    }
+                } else {
+                    if (lookup.call == null) {
+                        lookup.call = engine.call(lookup.callUrl, false);
+                    }
+                    lookup.response = await(lookup.call);
+                    // the call has finished with its problems, once it is done
+                    resultSb.append(lookup.call.problems);
+                }
+            }
+            lookup.status = (lookup.response != null) ?
+                            processResponse(lookup.response, lookup.item, resultSb) : Curator.CURATE_ERROR;
+        }
+        report(resultSb.toString() + engine.statistics());
+        if (lookup.status == Curator.CURATE_SUCCESS) {
+            ++succeeded;
+        } else if (lookup.status == Curator.CURATE_FAIL) {
+            ++failed;
+        } else {
+            ++errors;
+        }
+    }
+    
+    // obtains the response for an item's value from its batch call,
+    // awaiting the batch response when the first of its items completes
+    private ServiceResponse demultiplex(Lookup lookup) throws IOException {
+        Batch batch = lookup.batch;
+        if (! batch.resolved) {
+            batch.resolved = true;
+            batch.responses = (batch.call != null) ? await(batch.call) :
+                              engine.fetchBatch(batch.callUrl, batch.resultSb);
+        }
+        if (batch.responses == null) {
+            lookup.resultSb.append(batch.resultSb);
+            return null;
+        }
+        ServiceResponse response = batch.responses.get(engine.recordKey(lookup.value));
+        // no record is like a response document lacking the data
+        return (response != null) ? response : new ServiceResponse(ServiceResponse.newData(engine.dataList.size()));
+    }
+    
+    private <T> T await(Future<T> call) throws IOException {
+        try {
+            return call.get();
+        } catch (InterruptedException intE) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted awaiting service response");
+        } catch (ExecutionException execE) {
+            Throwable cause = execE.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("Service call failed: " + cause.getMessage(), cause);
+        }
     }
     
-    private int processResponse(Document doc, Item item, StringBuilder resultSb) throws IOException {
-       	boolean update = false;
+    private int processResponse(ServiceResponse response, Item item, StringBuilder resultSb) throws IOException {
        	int status = Curator.CURATE_ERROR;
+       	// values each mapped field is to have, in field order
+       	Map<String, FieldValues> fields = new LinkedHashMap<String, FieldValues>();
        	List<String> values = new ArrayList<String>();
-       	checkNamespaces(doc);
        	try {
-       		for (DataInfo info : dataList) {
-       			NodeList nodes = (NodeList)info.expr.evaluate(doc, XPathConstants.NODESET);
+       		for (int i = 0; i < engine.dataList.size(); i++) {
+       			DataInfo info = engine.dataList.get(i);
+       			List<String> found = response.values(i);
+       			FieldValues field = null;
        			values.clear();
        			// if data found and we are mapping, check assignment policy
-       			if (nodes.getLength() > 0 && info.mapping != null) {
+       			if (found.size() > 0 && info.mapping != null) {
+       				field = fields.get(info.field);
+       				if (field == null) {
+       					field = new FieldValues(info.schema, info.element, info.qualifier,
+       					                        item.getMetadata(info.schema, info.element, info.qualifier, Item.ANY));
+       					fields.put(info.field, field);
+       				}
        				if ("=>".equals(info.mapping)) {
-       					item.clearMetadata(info.schema, info.element, info.qualifier, Item.ANY);
+       					field.values.clear();
        				} else if ("~>".equals(info.mapping)) {
-       					if (item.getMetadata(info.schema, info.element, info.qualifier, Item.ANY).length > 0) {
+       					if (field.values.size() > 0) {
        						// there are values, so don't overwrite
        						continue;
        					}
        				} else {
-       					for (DCValue dcVal : item.getMetadata(info.schema, info.element, info.qualifier, Item.ANY)) {
+       					for (DCValue dcVal : field.values) {
        						values.add(dcVal.value);
        					}
        				}
        			}
-       			for (int i = 0; i < nodes.getLength(); i++) {
-       				Node node = nodes.item(i);
-       				String tvalue = transform(node.getFirstChild().getNodeValue(), info.transform);
+       			for (String value : found) {
+       				String tvalue = transform(value, info.transform);
        				// assign to metadata field if mapped && not present
-       				if (info.mapping != null && ! values.contains(tvalue)) {
-       					item.addMetadata(info.schema, info.element, info.qualifier, lang, tvalue);
-       					update = true;
+       				if (field != null && ! values.contains(tvalue)) {
+       					field.add(tvalue, engine.lang);
        				}
        				// add to result string in any case
-       				resultSb.append(fieldSeparator).append(info.label).append(": ").append(tvalue);
+       				resultSb.append(engine.fieldSeparator).append(info.label).append(": ").append(tvalue);
        			}
        		}
-       		// update Item if it has changed
-       		if (update) {
+       		// rewrite only the fields whose values differ, and update Item if any do
+       		int changed = 0;
+       		for (FieldValues field : fields.values()) {
+       			if (field.changed()) {
+       				field.apply(item);
+       				++changed;
+       			}
+       		}
+       		if (changed > 0) {
        			item.update();
+       			++updated;
+       		} else {
+       			++unchanged;
+       		}
+       		if (fields.size() > 0) {
+       			resultSb.append(" (fields changed: ").append(changed)
+       			        .append(" unchanged: ").append(fields.size() - changed).append(")");
        		}
        		status = Curator.CURATE_SUCCESS;
        	} catch (AuthorizeException authE) {
@@ -348,132 +553,754 @@ public class MetadataWebService extends AbstractCurationTask implements Namespac
        	} catch (SQLException sqlE) {
     		log.error("caught exception: " + sqlE);
     		resultSb.append(" error updating metadata");
-       	} catch (XPathExpressionException xpeE) {
-    		log.error("caught exception: " + xpeE);
-    		resultSb.append(" error reading response document");
        	}
         return status;
     }
     
-    private String transform(String value, String transDef) {
-    	if (transDef == null) {
-    		return value;
-    	}
-    	String[] tokens = tokenize(transDef);
-    	String retValue = value;
-    	for (int i = 0; i < tokens.length; i+= 2) {
-    		if ("cut".equals(tokens[i]) || "trunc".equals(tokens[i])) {
-    			int index = Integer.parseInt(tokens[i+1]);
-    			if (retValue.length() > index) {
-    				if ("cut".equals(tokens[i])) {
-    					retValue = retValue.substring(index);
-    				} else {
-    					retValue = retValue.substring(0, index);
-    				}
-    			} else if ("cut".equals(tokens[i])) {
-    				log.error("requested cut: " + index + " exceeds value length");
-    				return value;
-    			}
-    		} else if ("match".equals(tokens[i])) {
-    			int index2 = retValue.indexOf(tokens[i+1]);
-    			if (index2 > 0) {
-    				retValue = retValue.substring(index2);
-    			} else {
-    				log.error("requested match: " + tokens[i+1] + " failed");
-    				return value;
-    			}
-    		} else if ("text".equals(tokens[i])) {
-    			retValue = retValue + tokens[i+1];
-    		} else {
-    			log.error(" unknown transform operation: " + tokens[i]);
-    			return value;
-    		}
-    	}
-    	return retValue;
+    private static String transform(String value, Transform transform) {
+    	return (transform != null) ? transform.apply(value) : value;
     }
     
-    private String[] tokenize(String text)  {
-    	List<String> list = new ArrayList<String>();
-    	Matcher m = ttPattern.matcher(text);
-    	while (m.find()) {
-    		if (m.group(1) != null) {
-    			list.add(m.group(1));
-            } else if (m.group(2) != null) {
-                list.add(m.group(2));
+    /**
+     * Engine holds the compiled configuration of a task (template, datamap,
+     * transforms) and the services used to call the web service and extract
+     * response data. It is immutable once built, apart from thread-safe
+     * services (connection pool, cache, rate limiters), and keeps parser and
+     * XPath state per thread, so one engine serves all task instances of a
+     * configuration, on any number of curation threads. It is built from the
+     * first task instance initialized, and lives as long as the JVM.
+     */
+    private static class Engine {
+        // URL of web service with template parameters
+        public final String urlTemplate;
+        // template parameters, in template order
+        public final List<Param> params;
+        // response data to map/record
+        public final List<DataInfo> dataList;
+        // language for metadata fields assigned
+        public final String lang;
+        // field separator in result string
+        public final String fieldSeparator;
+        // number of items per batch call, 0 = no batching
+        public final int batchSize;
+        // maximum service calls in flight when pipelining, 0 = no pipelining
+        public final int pipeline;
+        // number of pending lookups which may have calls in flight
+        public final int window;
+        // cache of extracted response data, null if not caching
+        public final ResponseCache cache;
+        // recorded response documents, null if neither recording nor replaying
+        private final ResponseStore store;
+        // true if response documents come from the store, not the service
+        private final boolean replay;
+        // URL of web service accepting a batch of lookup values
+        private final String batchTemplate;
+        // separator of lookup values in batch service call
+        private final String batchSeparator;
+        // XPath expressions for each record in batch response, and its lookup value
+        private final String batchRecord;
+        private final String batchKey;
+        // streaming extraction of response data, null if using DOM
+        private final StreamExtractor streamer;
+        // extraction of JSON response data, null if responses are XML
+        private final JsonExtractor jsonReader;
+        // source of per-thread response document parsers
+        private final DocumentBuilderFactory docFactory;
+        // per-thread parsing tools
+        private final ThreadLocal<Parser> parsers = new ThreadLocal<Parser>();
+        // optional HTTP headers
+        private final Map<String, String> headers = new HashMap<String, String>();
+        // performs pipelined service calls
+        private final ExecutorService callers;
+        // pooled connections for service calls
+        private final ThreadSafeClientConnManager connManager;
+        // HTTP client using pooled connections
+        private final DefaultHttpClient client;
+        // seconds idle connections are kept alive, absent service advice
+        private final int keepAlive;
+        // service calls per second to each host, 0 = unlimited
+        private final double rate;
+        // call rate limiters by host
+        private final Map<String, Throttle> throttles = new HashMap<String, Throttle>();
+        // maximum retries of a call the service could not answer for now
+        private final int retries;
+        // initial and maximum milliseconds to wait before a retry
+        private final long backoff;
+        private final long maxBackoff;
+        // jitter for retry waits
+        private final Random random = new Random();
+        // number of calls retried
+        private final AtomicLong retried = new AtomicLong();
+        // service calls in flight, by call URL
+        private final ConcurrentMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+        // number of lookups answered by a call already in flight
+        private final AtomicLong coalesced = new AtomicLong();
+        // number of calls answered not modified
+        private final AtomicLong revalidated = new AtomicLong();
+        
+        public Engine(MetadataWebService task) throws IOException {
+            lang = ConfigurationManager.getProperty("default.language");
+            String fldSep = task.taskProperty("separator");
+            fieldSeparator = (fldSep != null) ? fldSep : " ";
+            urlTemplate = task.taskProperty("template");
+            List<Param> prms = new ArrayList<Param>();
+            List<String> tokens = new ArrayList<String>();
+            // a missing template has no parameters
+            Matcher pm = paramPattern.matcher((urlTemplate != null) ? urlTemplate : "");
+            while (pm.find()) {
+                if (! tokens.contains(pm.group(1))) {
+                    tokens.add(pm.group(1));
+                    // alternative fields, each with its own optional transform
+                    String[] alts = pm.group(1).split("\\|");
+                    String[] fields = new String[alts.length];
+                    Transform[] transforms = new Transform[alts.length];
+                    for (int i = 0; i < alts.length; i++) {
+                        String[] parsed = parseTransform(task, alts[i].trim());
+                        fields[i] = parsed[0];
+                        transforms[i] = compileTransform(parsed[1]);
+                    }
+                    prms.add(new Param(pm.group(1), fields, transforms));
+                }
+            }
+            if (prms.isEmpty()) {
+                log.error("service template has no {parameter}");
+                // no point in continuing
+                throw new IOException("Invalid service template for task: " + task.taskId);
+            }
+            params = Collections.unmodifiableList(prms);
+            boolean json = "json".equals(task.taskProperty("format"));
+            batchSize = (json || params.size() > 1) ? 0 : task.taskIntProperty("batch.size", 0);
+            if (params.size() > 1 && task.taskIntProperty("batch.size", 0) > 0) {
+                log.warn("batch lookups need a single template parameter - not batching");
+            }
+            batchTemplate = task.taskProperty("batch.template");
+            String batchSep = task.taskProperty("batch.separator");
+            batchSeparator = (batchSep != null) ? batchSep : ",";
+            batchRecord = task.taskProperty("batch.record");
+            batchKey = task.taskProperty("batch.key");
+            if (batchSize > 0) {
+                String token = "{" + params.get(0).token + "}";
+                if (batchTemplate == null || batchTemplate.indexOf(token) < 0 ||
+                    batchRecord == null || batchKey == null) {
+                    log.error("batch lookups need batch.template (with " + token +
+                              "), batch.record and batch.key");
+                    // no point in continuing
+                    throw new IOException("Invalid batch configuration for task: " + task.taskId);
+                }
+            }
+            List<DataInfo> infos = new ArrayList<DataInfo>();
+            List<String> exprs = new ArrayList<String>();
+            for (String entry : task.taskProperty("datamap").split(",")) {
+                entry = entry.trim();
+                String src = entry;
+                String mapping = null;
+                String field = null;
+                int mapIdx = getMapIndex(entry);
+                if (mapIdx > 0) {
+                    src = entry.substring(0, mapIdx);
+                    mapping = entry.substring(mapIdx, mapIdx + 2);
+                    field = entry.substring(mapIdx + 2);
+                }
+                // a first-value-only path is labelled as the path itself
+                String path = (src.startsWith("(") && src.endsWith(")[1]")) ?
+                              src.substring(1, src.length() - 4) : src;
+                int slIdx = json ? path.lastIndexOf(".") : path.lastIndexOf("/");
+                String label = (slIdx > 0) ? path.substring(slIdx + 1) : path;
+                // batch data is found relative to each record in the response
+                String xpsrc = (batchSize > 0 && src.startsWith("/")) ? "." + src : src;
+                String[] target = (field != null) ? parseTransform(task, field) : new String[2];
+                infos.add(new DataInfo(xpsrc, label, mapping, target[0], compileTransform(target[1])));
+                exprs.add(xpsrc);
+            }
+            dataList = Collections.unmodifiableList(infos);
+            if (json) {
+                jsonReader = JsonExtractor.compile(exprs);
+                if (jsonReader == null) {
+                    log.error("datamap has unsupported JSONPath expression");
+                    // no point in continuing
+                    throw new IOException("Invalid JSON datamap for task: " + task.taskId);
+                }
+                streamer = null;
+            } else {
+                jsonReader = null;
+                if ("stream".equals(task.taskProperty("parser"))) {
+                    streamer = StreamExtractor.compile(exprs);
+                    if (streamer == null) {
+                        log.warn("datamap not supported by stream parser - using DOM");
+                    }
+                } else {
+                    streamer = null;
+                }
             }
+            String hdrs = task.taskProperty("headers");
+            if (hdrs != null) {
+                for (String header : hdrs.split("\\|\\|")) {
+                    int split = header.indexOf(":");
+                    headers.put(header.substring(0, split).trim(), header.substring(split + 1).trim());
+                }
+            }
+            pipeline = task.taskIntProperty("pipeline", 0);
+            window = pipeline * Math.max(1, batchSize);
+            keepAlive = task.taskIntProperty("http.keepalive", 30);
+            String rateProp = task.taskProperty("http.rate");
+            rate = (rateProp != null) ? Double.parseDouble(rateProp.trim()) : 0.0;
+            retries = task.taskIntProperty("http.retries", 3);
+            backoff = task.taskLongProperty("http.backoff", 1000L);
+            maxBackoff = task.taskLongProperty("http.backoff.max", 60000L);
+            // initialize response cache
+            int cacheSize = task.taskIntProperty("cache.size", 0);
+            if (cacheSize > 0) {
+                String cacheDir = task.taskProperty("cache.dir");
+                cache = new ResponseCache(cacheSize, task.taskLongProperty("cache.ttl", 86400L) * 1000L,
+                                          (cacheDir != null) ? new File(cacheDir) : null,
+                                          task.taskProperty("datamap"));
+            } else {
+                cache = null;
+            }
+            // initialize recording or replay of response documents
+            String recordDir = task.taskProperty("record.dir");
+            store = (recordDir != null) ? new ResponseStore(new File(recordDir)) : null;
+            replay = (store != null) && "replay".equals(task.taskProperty("record.mode"));
+            // initialize response document parsing, checking a parser can be made
+            docFactory = DocumentBuilderFactory.newInstance();
+            docFactory.setNamespaceAware(true);
+            parser();
+            // threads and connections are made only once the configuration is
+            // known good, so a failed initialization leaves nothing behind
+            if (pipeline > 0) {
+                callers = AtExit.daemonPool("metadata-service-caller", pipeline);
+            } else {
+                callers = null;
+            }
+            // initialize pooled HTTP client, with a connection for each pipelined call
+            connManager = new ThreadSafeClientConnManager();
+            connManager.setDefaultMaxPerRoute(task.taskIntProperty("http.maxperroute", Math.max(2, pipeline)));
+            connManager.setMaxTotal(task.taskIntProperty("http.maxtotal", Math.max(20, pipeline)));
+            client = new DefaultHttpClient(connManager);
+            client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = super.getKeepAliveDuration(response, context);
+                    return (duration > 0) ? duration : keepAlive * 1000L;
+                }
+            });
+            if (task.taskBooleanProperty("http.compress", true)) {
+                // ask for gzip or deflate, and decompress as the entity is read
+                client.addRequestInterceptor(new RequestAcceptEncoding());
+                client.addResponseInterceptor(new ResponseContentEncoding());
+            }
+            // release threads and connections at exit
+            AtExit.run(new Runnable() {
+                public void run() {
+                    if (callers != null) {
+                        callers.shutdownNow();
+                    }
+                    connManager.shutdown();
+                }
+            });
         }
-        return list.toArray(new String[0]);
-    }
-    
-    private int getMapIndex(String mapping) {
-    	int index = mapping.indexOf("->");
-    	if (index == -1) {
-    		index = mapping.indexOf("=>");
-    	}
-    	if (index == -1) {
-    		index = mapping.indexOf("~>");
-    	}
-    	return index;
-    }
-
-    private String[] parseTransform(String field) {
-    	String[] parsed = new String[2];
-    	parsed[0] = field;
-       	int txIdx = field.indexOf(":");
-    	if (txIdx > 0) {
-    		// transform specified
-    		String txName = field.substring(0, txIdx);
-    		parsed[1] = taskProperty("transform." + txName);
-    		if (parsed[1] == null) {
-    			log.error("no transform found for: " + txName);
-    		}
-    		parsed[0] = field.substring(txIdx + 1);
-    	}
-    	return parsed;
-    }
-    
-    private void checkNamespaces(Document document) throws IOException {
-    	// skip if already done
-    	if (dataList.get(0).expr != null) {
-    	    return;
-    	}
-    	try {
-    	    XPath xpath = XPathFactory.newInstance().newXPath();
-    	    String prefix = null;
-            NamedNodeMap attrs = document.getDocumentElement().getAttributes();
-    		for (int i = 0; i < attrs.getLength(); i++) {
-    		    Node n = attrs.item(i);
-                String name = n.getNodeName();
-                // remember if a namespace
-                if (name.startsWith("xmlns")) {
-                    if (! "xmlns".equals(name)) {
-                        // it is a declared (non-default) namespace - capture prefix
-                        nsMap.put(name.substring(name.indexOf(":") + 1), n.getNodeValue());
-                    } else {
-                        // it is the default name space - mint a unique prefix
-                        prefix = "pre";
-                        nsMap.put(prefix, n.getNodeValue());
+        
+        // returns the value of each template parameter for an item, null
+        // where the item has no value for any of the parameter's fields
+        public String[] lookupValues(Item item) {
+            String[] values = new String[params.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = params.get(i).value(item);
+            }
+            return values;
+        }
+        
+        public String callUrl(String[] values) {
+            String callUrl = urlTemplate;
+            for (int i = 0; i < values.length; i++) {
+                callUrl = substitute(callUrl, params.get(i), values[i]);
+            }
+            return callUrl;
+        }
+        
+        public String batchUrl(List<String> values) {
+            StringBuilder valueSb = new StringBuilder();
+            for (String value : values) {
+                if (valueSb.length() > 0) {
+                    valueSb.append(batchSeparator);
+                }
+                valueSb.append(value);
+            }
+            return substitute(batchTemplate, params.get(0), valueSb.toString());
+        }
+        
+        private String substitute(String template, Param param, String value) {
+            return template.replaceAll(Pattern.quote("{" + param.token + "}"), Matcher.quoteReplacement(value));
+        }
+        
+        // returns the service call for a URL: the call already in flight, if
+        // any, else a new one, made on a caller thread if pipelined, otherwise
+        // on this thread before returning. The response is cached by the call.
+        public Call call(final String callUrl, boolean pipelined) {
+            final StringBuilder problems = new StringBuilder();
+            Call call = new Call(callUrl, problems, new Callable<ServiceResponse>() {
+                public ServiceResponse call() throws IOException {
+                    // an expired response may still be revalidated
+                    ServiceResponse prior = (cache != null) ? cache.peek(callUrl) : null;
+                    ServiceResponse response = fetch(callUrl, prior, problems);
+                    if (response != null && cache != null) {
+                        cache.put(callUrl, response);
                     }
+                    return response;
                 }
+            });
+            Call prior = calls.putIfAbsent(callUrl, call);
+            if (prior != null) {
+                coalesced.incrementAndGet();
+                return prior;
             }
-            if (nsMap.size() > 0) {
-    		    xpath.setNamespaceContext(this);
+            if (pipelined) {
+                callers.execute(call);
+            } else {
+                call.run();
             }
-    		// now compile the XPath expressions
-    		for (DataInfo info : dataList) {
-			    info.expr = xpath.compile(mangleExpr(info.xpsrc, prefix));
-		    }
-    	} catch (XPathExpressionException xpeE) {
-    		log.error("caught exception: " + xpeE);
-        	// no point in continuing
-        	throw new IOException(xpeE.getMessage(), xpeE);  			
-    	}
+            return call;
+        }
+        
+        // performs a batch service call on a caller thread; resultSb must
+        // not be used until the call is done
+        public Future<Map<String, ServiceResponse>> submitBatch(final String callUrl, final StringBuilder resultSb) {
+            return callers.submit(new Callable<Map<String, ServiceResponse>>() {
+                public Map<String, ServiceResponse> call() throws IOException {
+                    return fetchBatch(callUrl, resultSb);
+                }
+            });
+        }
+        
+        // performs a service call, returning the response data, or null
+        // (noting the problem in resultSb) if there is none. If a prior
+        // response has validators, the call is conditional, and the prior
+        // data is reused if the service reports it is not modified.
+        private ServiceResponse fetch(String callUrl, ServiceResponse prior, StringBuilder resultSb) throws IOException {
+            HttpGet req = request(callUrl);
+            HttpResponse resp = null;
+            if (! replay) {
+                if (prior != null && prior.etag() != null) {
+                    req.addHeader("If-None-Match", prior.etag());
+                }
+                if (prior != null && prior.lastModified() != null) {
+                    req.addHeader("If-Modified-Since", prior.lastModified());
+                }
+                resp = execute(req);
+                if (prior != null && resp != null &&
+                    resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    revalidated.incrementAndGet();
+                    return prior.validated(header(resp, "ETag", prior.etag()),
+                                           header(resp, "Last-Modified", prior.lastModified()));
+                }
+            }
+            InputStream instream = content(callUrl, resp, resultSb);
+            if (instream == null) {
+                return null;
+            }
+            // boiler-plate handling taken from Apache 4.1 javadoc
+            try {
+                ServiceResponse response = read(instream, resultSb);
+                if (response != null && resp != null) {
+                    response = response.validated(header(resp, "ETag", null), header(resp, "Last-Modified", null));
+                }
+                return response;
+            } catch (RuntimeException ex) {
+                // In case of an unexpected exception you may want to abort
+                // the HTTP request in order to shut down the underlying
+                // connection and release it back to the connection manager.
+                req.abort();
+                log.error("caught exception: " + ex);
+                throw ex;
+            } finally {
+                // Closing the input stream will trigger connection release
+                instream.close();
+            }
+        }
+        
+        // performs a batch service call, returning the response data of
+        // each record by its lookup value, or null if there is none
+        public Map<String, ServiceResponse> fetchBatch(String callUrl, StringBuilder resultSb) throws IOException {
+            HttpGet req = request(callUrl);
+            InputStream instream = content(callUrl, replay ? null : execute(req), resultSb);
+            if (instream == null) {
+                return null;
+            }
+            try {
+                return readBatch(instream, resultSb);
+            } catch (RuntimeException ex) {
+                req.abort();
+                log.error("caught exception: " + ex);
+                throw ex;
+            } finally {
+                instream.close();
+            }
+        }
+        
+        // returns the response document of a call, from the service (recording
+        // it, if so configured) or, when replaying, from the store; or null
+        // (noting the problem in resultSb) if there is none
+        private InputStream content(String callUrl, HttpResponse resp, StringBuilder resultSb) throws IOException {
+            if (replay) {
+                InputStream instream = store.open(callUrl);
+                if (instream == null) {
+                    resultSb.append("no recorded response");
+                }
+                return instream;
+            }
+            if (resp == null || resp.getEntity() == null) {
+                resultSb.append("no service response");
+                return null;
+            }
+            InputStream instream = resp.getEntity().getContent();
+            return (store != null) ? store.record(callUrl, instream) : instream;
+        }
+        
+        // lookup values are matched to batch records ignoring case and surrounding space
+        public String recordKey(String value) {
+            return value.trim().toLowerCase(Locale.ENGLISH);
+        }
+        
+        // returns running totals for the report, since tasks have no completion callback
+        public String statistics() {
+            StringBuilder statsSb = new StringBuilder();
+            if (cache != null) {
+                statsSb.append("cache hits: ").append(cache.hits()).append(" misses: ").append(cache.misses());
+                if (revalidated.get() > 0L) {
+                    statsSb.append(" not modified: ").append(revalidated.get());
+                }
+            }
+            long waited = 0L;
+            synchronized (throttles) {
+                for (Throttle throttle : throttles.values()) {
+                    waited += throttle.waited();
+                }
+            }
+            if (coalesced.get() > 0L) {
+                if (statsSb.length() > 0) {
+                    statsSb.append(", ");
+                }
+                statsSb.append("coalesced: ").append(coalesced.get());
+            }
+            if (rate > 0.0 || retried.get() > 0L) {
+                if (statsSb.length() > 0) {
+                    statsSb.append(", ");
+                }
+                statsSb.append("retries: ").append(retried.get()).append(" throttled ms: ").append(waited);
+            }
+            return (statsSb.length() > 0) ? " (" + statsSb.toString() + ")" : "";
+        }
+        
+        private HttpGet request(String callUrl) {
+            HttpGet req = new HttpGet(callUrl);
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                req.addHeader(entry.getKey(), entry.getValue());
+            }
+            return req;
+        }
+        
+        // executes a service call, returning the response if OK (or not
+        // modified), or null if the call did not succeed. Calls are limited to the configured rate
+        // for their host, and retried (holding off all calls to the host) when
+        // the service is unavailable or too busy to answer.
+        private HttpResponse execute(HttpGet req) throws IOException {
+            Throttle throttle = throttle(req.getURI().getHost());
+            HttpResponse resp = null;
+            int statusCode = 0;
+            for (int attempt = 0; ; attempt++) {
+                throttle.acquire(0L);
+                // tasks have no completion callback, so reclaim connections as we go
+                connManager.closeExpiredConnections();
+                connManager.closeIdleConnections(keepAlive, TimeUnit.SECONDS);
+                resp = client.execute(req);
+                statusCode = resp.getStatusLine().getStatusCode();
+                if (attempt == retries || ! retryable(statusCode)) {
+                    break;
+                }
+                long wait = retryWait(resp, attempt);
+                if (wait > maxBackoff) {
+                    log.error("service asked for retry after " + wait + " ms, exceeding maximum wait");
+                    break;
+                }
+                EntityUtils.consume(resp.getEntity());
+                log.info("service returned status: " + statusCode + ", retrying in " + wait + " ms");
+                retried.incrementAndGet();
+                throttle.hold(wait);
+            }
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                return resp;
+            }
+            if (statusCode != HttpStatus.SC_OK) {
+                log.error("service returned non-OK status: " + statusCode);
+                // read any error content, so the connection returns to the pool
+                EntityUtils.consume(resp.getEntity());
+                return null;
+            }
+            if (resp.getEntity() == null) {
+                log.error(" obtained no valid service response");
+            }
+            return resp;
+        }
+        
+        private String header(HttpResponse resp, String name, String defValue) {
+            Header header = resp.getFirstHeader(name);
+            return (header != null) ? header.getValue() : defValue;
+        }
+        
+        private boolean retryable(int statusCode) {
+            return statusCode == 429 ||
+                   statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE ||
+                   statusCode == HttpStatus.SC_BAD_GATEWAY ||
+                   statusCode == HttpStatus.SC_GATEWAY_TIMEOUT;
+        }
+        
+        // returns the milliseconds to wait before retrying a call: the
+        // service's Retry-After advice if any, else an exponential backoff
+        // with random jitter, so that retrying callers spread out
+        private long retryWait(HttpResponse resp, int attempt) {
+            Header retryAfter = resp.getFirstHeader("Retry-After");
+            if (retryAfter != null) {
+                String value = retryAfter.getValue().trim();
+                try {
+                    return Math.max(0L, Long.parseLong(value) * 1000L);
+                } catch (NumberFormatException nfE) {
+                    try {
+                        Date date = DateUtils.parseDate(value);
+                        return Math.max(0L, date.getTime() - System.currentTimeMillis());
+                    } catch (DateParseException dpE) {
+                        log.error("unreadable Retry-After: " + value);
+                    }
+                }
+            }
+            long wait = Math.min(maxBackoff, backoff << Math.min(attempt, 30));
+            return wait / 2 + (long)(random.nextDouble() * (wait / 2));
+        }
+        
+        private Throttle throttle(String host) {
+            synchronized (throttles) {
+                Throttle throttle = throttles.get(host);
+                if (throttle == null) {
+                    throttle = new Throttle(0.0, rate);
+                    throttles.put(host, throttle);
+                }
+                return throttle;
+            }
+        }
+        
+        private ServiceResponse read(InputStream instream, StringBuilder resultSb) throws IOException {
+            if (jsonReader != null) {
+                try {
+                    return new ServiceResponse(jsonReader.extract(instream));
+                } catch (JsonProcessingException jpE) {
+                    log.error("caught exception: " + jpE);
+                    resultSb.append(" unable to read response document");
+                    return null;
+                }
+            }
+            if (streamer != null) {
+                try {
+                    return new ServiceResponse(streamer.extract(instream));
+                } catch (XMLStreamException xsE) {
+                    log.error("caught exception: " + xsE);
+                    resultSb.append(" unable to read response document");
+                    return null;
+                }
+            }
+            try {
+                Parser parser = parser();
+                Document doc = parser.docBuilder.parse(instream);
+                return extract(parser.compiled(doc), doc);
+            } catch (SAXException saxE) {
+                log.error("caught exception: " + saxE);
+                resultSb.append(" unable to read response document");
+            } catch (XPathExpressionException xpeE) {
+                log.error("caught exception: " + xpeE);
+                resultSb.append(" error reading response document");
+            }
+            return null;
+        }
+        
+        // reads a batch response, returning the data of each record by its lookup value
+        private Map<String, ServiceResponse> readBatch(InputStream instream, StringBuilder resultSb) throws IOException {
+            try {
+                Parser parser = parser();
+                Document doc = parser.docBuilder.parse(instream);
+                XPathExpression[] exprs = parser.compiled(doc);
+                Map<String, ServiceResponse> responses = new HashMap<String, ServiceResponse>();
+                // batch record and key expressions follow the datamap expressions
+                NodeList records = (NodeList)exprs[dataList.size()].evaluate(doc, XPathConstants.NODESET);
+                for (int i = 0; i < records.getLength(); i++) {
+                    Node record = records.item(i);
+                    responses.put(recordKey(exprs[dataList.size() + 1].evaluate(record)), extract(exprs, record));
+                }
+                return responses;
+            } catch (SAXException saxE) {
+                log.error("caught exception: " + saxE);
+                resultSb.append(" unable to read response document");
+            } catch (XPathExpressionException xpeE) {
+                log.error("caught exception: " + xpeE);
+                resultSb.append(" error reading response document");
+            }
+            return null;
+        }
+        
+        private ServiceResponse extract(XPathExpression[] exprs, Node context) throws XPathExpressionException {
+            List<List<String>> data = ServiceResponse.newData(dataList.size());
+            for (int i = 0; i < dataList.size(); i++) {
+                NodeList nodes = (NodeList)exprs[i].evaluate(context, XPathConstants.NODESET);
+                for (int j = 0; j < nodes.getLength(); j++) {
+                    data.get(i).add(nodes.item(j).getFirstChild().getNodeValue());
+                }
+            }
+            return new ServiceResponse(data);
+        }
+        
+        // returns the parsing tools of the current thread
+        private Parser parser() throws IOException {
+            Parser parser = parsers.get();
+            if (parser == null) {
+                // JAXP factories are not thread-safe
+                synchronized (docFactory) {
+                    try {
+                        parser = new Parser(docFactory.newDocumentBuilder(),
+                                            XPathFactory.newInstance().newXPath());
+                    } catch (ParserConfigurationException pcE) {
+                        log.error("caught exception: " + pcE);
+                        // no point in continuing
+                        throw new IOException(pcE.getMessage(), pcE);
+                    }
+                }
+                parsers.set(parser);
+            }
+            return parser;
+        }
+        
+        private int getMapIndex(String mapping) {
+            int index = mapping.indexOf("->");
+            if (index == -1) {
+                index = mapping.indexOf("=>");
+            }
+            if (index == -1) {
+                index = mapping.indexOf("~>");
+            }
+            return index;
+        }
+        
+        private String[] parseTransform(MetadataWebService task, String field) {
+            String[] parsed = new String[2];
+            parsed[0] = field;
+            int txIdx = field.indexOf(":");
+            if (txIdx > 0) {
+                // transform specified
+                String txName = field.substring(0, txIdx);
+                parsed[1] = task.taskProperty("transform." + txName);
+                if (parsed[1] == null) {
+                    log.error("no transform found for: " + txName);
+                }
+                parsed[0] = field.substring(txIdx + 1);
+            }
+            return parsed;
+        }
+        
+        private Transform compileTransform(String definition) {
+            if (definition == null) {
+                return null;
+            }
+            // an invalid transform is logged, and leaves values untransformed
+            return Transform.compile(definition);
+        }
+        
+        /**
+         * Call is a service call for a URL, shared by all lookups needing
+         * it while it is in flight, so concurrent identical lookups make one
+         * request. Problems met are noted for each of them to report.
+         */
+        private class Call extends FutureTask<ServiceResponse> {
+            public final String callUrl;
+            public final StringBuilder problems;
+            
+            public Call(String callUrl, StringBuilder problems, Callable<ServiceResponse> fetcher) {
+                super(fetcher);
+                this.callUrl = callUrl;
+                this.problems = problems;
+            }
+            
+            @Override
+            protected void done() {
+                // later lookups start a new call, or find the response cached
+                calls.remove(callUrl, this);
+            }
+        }
+        
+        /**
+         * Parser holds the response parsing tools of one thread: a document
+         * builder, and the XPath expressions of the datamap (and batch record
+         * and key) compiled for each set of namespaces met in responses.
+         */
+        private class Parser {
+            public final DocumentBuilder docBuilder;
+            public final XPath xpath;
+            // compiled expressions by namespace declarations of document element
+            private final Map<String, XPathExpression[]> compiled = new HashMap<String, XPathExpression[]>();
+            
+            public Parser(DocumentBuilder docBuilder, XPath xpath) {
+                this.docBuilder = docBuilder;
+                this.xpath = xpath;
+            }
+            
+            // returns the expressions compiled for the namespaces of document
+            public XPathExpression[] compiled(Document document) throws IOException {
+                Map<String, String> nsMap = new TreeMap<String, String>();
+                String prefix = null;
+                NamedNodeMap attrs = document.getDocumentElement().getAttributes();
+                for (int i = 0; i < attrs.getLength(); i++) {
+                    Node n = attrs.item(i);
+                    String name = n.getNodeName();
+                    // remember if a namespace
+                    if (name.startsWith("xmlns")) {
+                        if (! "xmlns".equals(name)) {
+                            // it is a declared (non-default) namespace - capture prefix
+                            nsMap.put(name.substring(name.indexOf(":") + 1), n.getNodeValue());
+                        } else {
+                            // it is the default name space - mint a unique prefix
+                            prefix = "pre";
+                            nsMap.put(prefix, n.getNodeValue());
+                        }
+                    }
+                }
+                String key = nsMap.toString();
+                XPathExpression[] exprs = compiled.get(key);
+                if (exprs != null) {
+                    return exprs;
+                }
+                try {
+                    xpath.setNamespaceContext(new Namespaces(nsMap));
+                    exprs = new XPathExpression[dataList.size() + ((batchSize > 0) ? 2 : 0)];
+                    for (int i = 0; i < dataList.size(); i++) {
+                        exprs[i] = xpath.compile(mangleExpr(dataList.get(i).xpsrc, prefix));
+                    }
+                    if (batchSize > 0) {
+                        exprs[dataList.size()] = xpath.compile(mangleExpr(batchRecord, prefix));
+                        exprs[dataList.size() + 1] = xpath.compile(mangleExpr(batchKey, prefix));
+                    }
+                } catch (XPathExpressionException xpeE) {
+                    log.error("caught exception: " + xpeE);
+                    // no point in continuing
+                    throw new IOException(xpeE.getMessage(), xpeE);
+                }
+                compiled.put(key, exprs);
+                return exprs;
+            }
+        }
     }
     
-    private String mangleExpr(String expr, String prefix) {
+    private static String mangleExpr(String expr, String prefix) {
     	if (prefix == null) {
     		return expr;
     	}
+    	if (expr.startsWith("(") && expr.endsWith(")[1]")) {
+    		return "(" + mangleExpr(expr.substring(1, expr.length() - 4), prefix) + ")[1]";
+    	}
     	// OK the drill is to prepend all node names with the prefix
     	// *unless* the node name already has a prefix.
     	StringBuilder sb = new StringBuilder();
@@ -485,7 +1312,7 @@ public class MetadataWebService extends AbstractCurationTask implements Namespac
     		} else {
     			int next = expr.indexOf("/", i);
     			String token = (next > 0) ? expr.substring(i, next) : expr.substring(i);
-    			if (! token.startsWith("@") && token.indexOf(":") < 0) {
+    			if (! token.startsWith("@") && ! token.startsWith(".") && token.indexOf(":") < 0) {
     				sb.append(prefix).append(":");
     			}
     			sb.append(token);
@@ -495,49 +1322,186 @@ public class MetadataWebService extends AbstractCurationTask implements Namespac
     	return sb.toString();
     }
     
-    // ---- NamespaceContext methods ---- //
+    /**
+     * Namespaces is an immutable NamespaceContext for XPath evaluation.
+     */
+    private static class Namespaces implements NamespaceContext {
+        // namespace URIs by prefix
+        private final Map<String, String> nsMap;
+        
+        public Namespaces(Map<String, String> nsMap) {
+            this.nsMap = nsMap;
+        }
+        
+        public String getNamespaceURI(String prefix) {
+            if (prefix == null) {
+            	throw new NullPointerException("Null prefix");
+            } else if ("xml".equals(prefix)) {
+            	return XMLConstants.XML_NS_URI;
+            }
+            String nsURI = nsMap.get(prefix);
+            return (nsURI != null) ? nsURI : XMLConstants.NULL_NS_URI;
+        }
+
+        public String getPrefix(String uri) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Iterator getPrefixes(String uri) {
+            throw new UnsupportedOperationException();
+        }
+    }
     
-    public String getNamespaceURI(String prefix) {
-        if (prefix == null) {
-        	throw new NullPointerException("Null prefix");
-        } else if ("xml".equals(prefix)) {
-        	return XMLConstants.XML_NS_URI;
-        }
-        String nsURI = nsMap.get(prefix);
-        return (nsURI != null) ? nsURI : XMLConstants.NULL_NS_URI;
+    private static class Lookup {
+        public Item item;                   // item being looked up
+        public StringBuilder resultSb;      // result string for item
+        public String value;                // lookup value, null if item lacks it
+        public String callUrl;              // service call URL, null if item lacks lookup value
+        public ServiceResponse response;    // response data, once obtained
+        public Engine.Call call;            // service call, null if none yet
+        public Batch batch;                 // batch call for value, null if none
+        public int status = Curator.CURATE_ERROR;
+        
+        public Lookup(Item item) {
+            this.item = item;
+            resultSb = new StringBuilder();
+        }
+        
+        // true if the lookup can be completed, i.e. no batch remains to be called
+        public boolean dispatched() {
+            return batch == null || batch.dispatched;
+        }
     }
-
-    public String getPrefix(String uri) {
-        throw new UnsupportedOperationException();
+    
+    private static class Batch {
+        public List<String> values = new ArrayList<String>(); // distinct lookup values
+        public int lookups;                 // number of lookups in batch
+        public String callUrl;              // batch service call URL, once dispatched
+        public boolean dispatched;          // true once the call URL is set
+        public Future<Map<String, ServiceResponse>> call; // pipelined service call, null if none
+        public boolean resolved;            // true once the response has been obtained
+        public Map<String, ServiceResponse> responses; // response data by lookup value, null if call failed
+        public StringBuilder resultSb = new StringBuilder(); // problems with call, for each item
     }
-
-    public Iterator getPrefixes(String uri) {
-        throw new UnsupportedOperationException();
+    
+    /**
+     * FieldValues holds the values an item metadata field had, and those
+     * the datamap assigns it, so that the field is only rewritten when they
+     * differ. Values kept from the item retain their language and authority.
+     */
+    private static class FieldValues {
+        public final String schema;
+        public final String element;
+        public final String qualifier;
+        public final DCValue[] original;    // values the field had, in order
+        public final List<DCValue> values;  // values the field is to have, in order
+        private final Set<DCValue> added = new HashSet<DCValue>(); // values new to the field
+        
+        public FieldValues(String schema, String element, String qualifier, DCValue[] original) {
+            this.schema = schema;
+            this.element = element;
+            this.qualifier = qualifier;
+            this.original = original;
+            values = new ArrayList<DCValue>(Arrays.asList(original));
+        }
+        
+        public void add(String value, String lang) {
+            DCValue dcVal = new DCValue();
+            dcVal.value = value;
+            dcVal.language = lang;
+            values.add(dcVal);
+            added.add(dcVal);
+        }
+        
+        public boolean changed() {
+            if (values.size() != original.length) {
+                return true;
+            }
+            for (int i = 0; i < original.length; i++) {
+                if (! original[i].value.equals(values.get(i).value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        public void apply(Item item) {
+            item.clearMetadata(schema, element, qualifier, Item.ANY);
+            for (DCValue dcVal : values) {
+                if (added.contains(dcVal)) {
+                    item.addMetadata(schema, element, qualifier, dcVal.language, dcVal.value);
+                } else {
+                    item.addMetadata(schema, element, qualifier, dcVal.language, dcVal.value,
+                                     dcVal.authority, dcVal.confidence);
+                }
+            }
+        }
     }
     
-    private class DataInfo {
-    	public XPathExpression expr; // compiled XPath espression for data
-    	public String xpsrc;		// uncompiled XPath expression 
-    	public String label;		// label for data in result string
-    	public String mapping;		// data mapping symbol: ->,=>,~>, or null = unmapped
-    	public String schema;		// item metadata field mapping target, null = unmapped
-    	public String element;		// item metadata field mapping target, null = unmapped
-    	public String qualifier;	// item metadata field mapping target, null = unmapped
-    	public String transform;	// optional transformation of data before field assignment
+    /**
+     * Param is a template parameter: a chain of item metadata fields, each
+     * with an optional transform, whose first value is used. The first field
+     * in the chain having a value supplies it.
+     */
+    private static class Param {
+        public final String token;          // parameter text in template, between braces
+        private final String[] fields;      // alternative item metadata fields, in order of preference
+        private final Transform[] transforms; // optional transformation of each field value
+        
+        public Param(String token, String[] fields, Transform[] transforms) {
+            this.token = token;
+            this.fields = fields;
+            this.transforms = transforms;
+        }
+        
+        // returns the parameter value for an item, or null if it has none
+        public String value(Item item) {
+            for (int i = 0; i < fields.length; i++) {
+                DCValue[] dcVals = item.getMetadata(fields[i]);
+                if (dcVals.length > 0 && dcVals[0].value.length() > 0) {
+                    return transform(dcVals[0].value, transforms[i]);
+                }
+            }
+            return null;
+        }
+        
+        // returns the fields of the parameter, for reporting
+        public String fields() {
+            StringBuilder fieldSb = new StringBuilder();
+            for (String field : fields) {
+                if (fieldSb.length() > 0) {
+                    fieldSb.append(" or ");
+                }
+                fieldSb.append(field);
+            }
+            return fieldSb.toString();
+        }
+    }
+    
+    private static class DataInfo {
+    	public final String xpsrc;		// uncompiled XPath expression 
+    	public final String label;		// label for data in result string
+    	public final String mapping;	// data mapping symbol: ->,=>,~>, or null = unmapped
+    	public final String field;		// item metadata field mapping target, null = unmapped
+    	public final String schema;		// item metadata field mapping target, null = unmapped
+    	public final String element;	// item metadata field mapping target, null = unmapped
+    	public final String qualifier;	// item metadata field mapping target, null = unmapped
+    	public final Transform transform; // optional transformation of data before field assignment
     	
-    	public DataInfo(String xpsrc, String label, String mapping, String field) {
+    	public DataInfo(String xpsrc, String label, String mapping, String field, Transform transform) {
     		this.xpsrc = xpsrc;
-    		this.expr = expr;
     		this.label = label;
     		this.mapping = mapping;
+    		this.field = field;
     		if (field != null) {
-    			String[] parsed = parseTransform(field);
-    			String[] parts = parsed[0].split("\\.");
+    			String[] parts = field.split("\\.");
     			this.schema = parts[0];
     			this.element = parts[1];
     			this.qualifier = (parts.length == 3) ? parts[2] : null;
-    			this.transform = parsed[1];
+    		} else {
+    			this.schema = this.element = this.qualifier = null;
     		}
+    		this.transform = transform;
     	}
     }
 }
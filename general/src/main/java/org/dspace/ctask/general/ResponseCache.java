@@ -0,0 +1,194 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ResponseCache holds recent web service responses (as extracted data),
+ * keyed by service call URL. The most recently used entries are held in
+ * memory, up to a fixed number, and entries expire a fixed time after the
+ * response was obtained. If given a directory, the cache also writes each
+ * response there (one file per call URL), so that it survives between
+ * curation runs. Since extracted data depends on the datamap, disk entries
+ * are further keyed by a caller-supplied signature of it. Expired entries
+ * are not returned by get, but are kept (until dropped as least recently
+ * used) so that they may be revalidated with the service. Thread-safe.
+ *
+ * @author richardrodgers
+ */
+class ResponseCache
+{
+    /** log4j category */
+    private static final Logger log = Logger.getLogger(ResponseCache.class);
+    // maximum number of entries held in memory
+    private final int maxEntries;
+    // lifetime of an entry in milliseconds, 0 = unlimited
+    private final long ttl;
+    // directory of persistent entries, null if none
+    private final File dir;
+    // signature distinguishing persistent entries of this datamap
+    private final String signature;
+    // entries in least-recently-used order
+    private final Map<String, ServiceResponse> entries;
+    // lookup outcomes
+    private long hits = 0L;
+    private long misses = 0L;
+
+    ResponseCache(final int maxEntries, long ttl, File dir, String signature) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.dir = dir;
+        this.signature = signature;
+        entries = new LinkedHashMap<String, ServiceResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ServiceResponse> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (dir != null) {
+            dir.mkdirs();
+        }
+    }
+
+    /**
+     * Returns the cached response for a call URL
+     *
+     * @param key the service call URL
+     * @return the response, or null if absent or expired
+     */
+    synchronized ServiceResponse get(String key) {
+        ServiceResponse response = entries.get(key);
+        if (response == null && dir != null) {
+            response = load(key);
+            if (response != null) {
+                entries.put(key, response);
+            }
+        }
+        if (response != null && expired(response)) {
+            response = null;
+        }
+        if (response != null) {
+            ++hits;
+        } else {
+            ++misses;
+        }
+        return response;
+    }
+
+    /**
+     * Returns the cached response for a call URL, even if expired. The
+     * lookup is not counted as a hit or miss.
+     *
+     * @param key the service call URL
+     * @return the response, or null if absent
+     */
+    synchronized ServiceResponse peek(String key) {
+        ServiceResponse response = entries.get(key);
+        if (response == null && dir != null) {
+            response = load(key);
+        }
+        return response;
+    }
+
+    /**
+     * Adds a response to the cache
+     *
+     * @param key the service call URL
+     * @param response the response
+     */
+    synchronized void put(String key, ServiceResponse response) {
+        entries.put(key, response);
+        if (dir != null) {
+            store(key, response);
+        }
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache
+     *
+     * @return the hit count
+     */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups not answered from the cache
+     *
+     * @return the miss count
+     */
+    synchronized long misses() {
+        return misses;
+    }
+
+    private boolean expired(ServiceResponse response) {
+        return ttl > 0L && System.currentTimeMillis() - response.created() > ttl;
+    }
+
+    private ServiceResponse load(String key) {
+        File file = entryFile(key);
+        if (! file.exists()) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                                   new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return (ServiceResponse)in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (ClassNotFoundException cnfE) {
+            log.error("caught exception: " + cnfE);
+        } catch (IOException ioE) {
+            // unreadable entry is no worse than a missing one
+            log.error("caught exception: " + ioE);
+        }
+        file.delete();
+        return null;
+    }
+
+    private void store(String key, ServiceResponse response) {
+        File file = entryFile(key);
+        File temp = new File(dir, file.getName() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(
+                                     new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeObject(response);
+            } finally {
+                out.close();
+            }
+            // replace any prior entry in one step, so readers never see a partial one
+            file.delete();
+            if (! temp.renameTo(file)) {
+                log.error("unable to write cache entry: " + file.getPath());
+            }
+        } catch (IOException ioE) {
+            // the in-memory entry is still good
+            log.error("caught exception: " + ioE);
+            temp.delete();
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(dir, Digester.sha1Hex(signature, key));
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ResponseStore records web service response documents in a directory, so
+ * that they may later be replayed in place of the service. Each document is
+ * kept whole and gzip-compressed, in a file named by the SHA-1 hash of its
+ * call URL. Documents are recorded as they are read, and only a document read
+ * (or drained) to its end is kept, so a failed call never leaves a partial
+ * recording. Thread-safe.
+ *
+ * @author richardrodgers
+ */
+class ResponseStore
+{
+    /** log4j category */
+    private static final Logger log = Logger.getLogger(ResponseStore.class);
+    // directory of recorded documents
+    private final File dir;
+
+    ResponseStore(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    /**
+     * Opens the recorded response document for a call URL
+     *
+     * @param callUrl the service call URL
+     * @return the document content, or null if none recorded
+     * @throws IOException if the recording cannot be read
+     */
+    InputStream open(String callUrl) throws IOException {
+        File file = entryFile(callUrl);
+        if (! file.exists()) {
+            return null;
+        }
+        return new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Records a response document as it is read
+     *
+     * @param callUrl the service call URL
+     * @param in the document content from the service
+     * @return the document content, recorded when read and closed
+     * @throws IOException if the recording cannot be started
+     */
+    InputStream record(String callUrl, InputStream in) throws IOException {
+        File file = entryFile(callUrl);
+        // temp names are unique, since identical calls may be in flight at once
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        return new Recording(in, file, temp);
+    }
+
+    private File entryFile(String callUrl) {
+        return new File(dir, Digester.sha1Hex(callUrl) + ".gz");
+    }
+
+    /**
+     * Recording copies the content read to a compressed temp file, and on
+     * close reads any content left, then puts the recording in place.
+     */
+    private static class Recording extends FilterInputStream {
+        private final File file;
+        private final File temp;
+        private OutputStream out;
+
+        public Recording(InputStream in, File file, File temp) throws IOException {
+            super(in);
+            this.file = file;
+            this.temp = temp;
+            out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && out != null) {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0 && out != null) {
+                write(b, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped content must still be recorded
+            byte[] buf = new byte[(int)Math.min(n, 8192L)];
+            int count = read(buf, 0, buf.length);
+            return Math.max(0, count);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (out != null) {
+                    byte[] buf = new byte[8192];
+                    while (read(buf, 0, buf.length) >= 0) {
+                        // recording the rest of the document
+                    }
+                    if (out != null) {
+                        out.close();
+                        out = null;
+                        // replace any prior recording in one step
+                        file.delete();
+                        if (! temp.renameTo(file)) {
+                            log.error("unable to write recording: " + file.getPath());
+                            temp.delete();
+                        }
+                    }
+                }
+            } catch (IOException ioE) {
+                // the document itself has been read
+                log.error("caught exception: " + ioE);
+                discard();
+            } finally {
+                super.close();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) {
+            try {
+                out.write(b, off, len);
+            } catch (IOException ioE) {
+                // a failed recording must not fail the call
+                log.error("caught exception: " + ioE);
+                discard();
+            }
+        }
+
+        private void discard() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioE) {
+                    // nothing more to do
+                }
+                out = null;
+            }
+            temp.delete();
+        }
+    }
+}
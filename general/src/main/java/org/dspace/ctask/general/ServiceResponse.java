@@ -0,0 +1,109 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ServiceResponse holds the data extracted from one web service response:
+ * for each datamap entry (in datamap order), the untransformed values found
+ * in the response. It is all that MetadataWebService needs to update an item,
+ * so may be cached and reused in place of the response document itself.
+ * The response validators (ETag and Last-Modified headers) are kept too,
+ * so that a cached response can be revalidated with a conditional call.
+ *
+ * @author richardrodgers
+ */
+class ServiceResponse implements Serializable
+{
+    private static final long serialVersionUID = 2L;
+    // extracted values, one list per datamap entry
+    private final List<List<String>> data;
+    // time response obtained from service
+    private final long created;
+    // response validators, null if not given by service
+    private final String etag;
+    private final String lastModified;
+
+    ServiceResponse(List<List<String>> data) {
+        this(data, null, null);
+    }
+
+    private ServiceResponse(List<List<String>> data, String etag, String lastModified) {
+        this.data = data;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        created = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns this response data with validators, as obtained now
+     *
+     * @param etag the ETag header value, or null if none
+     * @param lastModified the Last-Modified header value, or null if none
+     * @return the validated response
+     */
+    ServiceResponse validated(String etag, String lastModified) {
+        return new ServiceResponse(data, etag, lastModified);
+    }
+
+    /**
+     * Returns the values extracted for a datamap entry
+     *
+     * @param index the position of the entry in the datamap
+     * @return the values, in response document order
+     */
+    List<String> values(int index) {
+        return (index < data.size()) ? data.get(index) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Returns the time the response was obtained
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    long created() {
+        return created;
+    }
+
+    /**
+     * Returns the ETag of the response
+     *
+     * @return the entity tag, or null if none
+     */
+    String etag() {
+        return etag;
+    }
+
+    /**
+     * Returns the Last-Modified date of the response
+     *
+     * @return the HTTP date, or null if none
+     */
+    String lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns an empty data list ready for population, one values list per
+     * datamap entry
+     *
+     * @param size the number of datamap entries
+     * @return the data list
+     */
+    static List<List<String>> newData(int size) {
+        List<List<String>> data = new ArrayList<List<String>>(size);
+        for (int i = 0; i < size; i++) {
+            data.add(new ArrayList<String>());
+        }
+        return data;
+    }
+}
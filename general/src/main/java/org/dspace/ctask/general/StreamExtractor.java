@@ -0,0 +1,277 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * StreamExtractor finds datamap values in a response document as it is read
+ * (using StAX), rather than from a DOM of the whole document. It understands
+ * the subset of XPath commonly used in datamaps: absolute paths whose steps
+ * are child ('/') or descendant ('//') steps naming an element (optionally
+ * prefixed, or '*'), with an optional final attribute step ('@name'). A path
+ * in the form '(path)[1]' selects only the first value in the document; when
+ * every path is so limited, reading stops as soon as all values are found.
+ *
+ * Values are those the DOM extraction would yield: the attribute value, or
+ * the first text of the element. As there, unprefixed element names belong
+ * to the default namespace of the document element (if any), and prefixes
+ * are those declared on the document element. Thread-safe.
+ *
+ * @author richardrodgers
+ */
+class StreamExtractor
+{
+    // step syntax: optional attribute marker, optional prefix, name or wildcard
+    private static final Pattern stepPattern =
+        Pattern.compile("(@)?(?:([A-Za-z_][\\w.\\-]*):)?([A-Za-z_][\\w.\\-]*|\\*)");
+    // per-thread reader factories, since factories need not be thread-safe
+    private static final ThreadLocal<XMLInputFactory> factories = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            return factory;
+        }
+    };
+    // compiled datamap paths, in datamap order
+    private final Path[] paths;
+    // true if every path wants only its first value
+    private final boolean bounded;
+
+    private StreamExtractor(Path[] paths) {
+        this.paths = paths;
+        boolean allFirst = true;
+        for (Path path : paths) {
+            allFirst &= path.first;
+        }
+        bounded = allFirst;
+    }
+
+    /**
+     * Compiles datamap expressions for streaming extraction
+     *
+     * @param exprs the XPath expressions, in datamap order
+     * @return the extractor, or null if any expression is not supported
+     */
+    static StreamExtractor compile(List<String> exprs) {
+        Path[] paths = new Path[exprs.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = Path.compile(exprs.get(i).trim());
+            if (paths[i] == null) {
+                return null;
+            }
+        }
+        return new StreamExtractor(paths);
+    }
+
+    /**
+     * Extracts the values of each expression from a response document
+     *
+     * @param in the response document content
+     * @return the values of each expression, in expression order
+     * @throws XMLStreamException if the document cannot be read
+     */
+    List<List<String>> extract(InputStream in) throws XMLStreamException {
+        List<List<String>> data = ServiceResponse.newData(paths.length);
+        boolean[] done = new boolean[paths.length];
+        int remaining = paths.length;
+        Map<String, String> nsMap = new HashMap<String, String>();
+        List<String[]> stack = new ArrayList<String[]>();
+        // paths capturing the first text of the current element
+        List<Integer> capturing = new ArrayList<Integer>();
+        StringBuilder text = new StringBuilder();
+        XMLStreamReader reader = factories.get().createXMLStreamReader(in);
+        try {
+            while (reader.hasNext() && ! (bounded && remaining == 0)) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        remaining -= capture(capturing, text, data, done);
+                        if (stack.isEmpty()) {
+                            // namespaces are those of the document element
+                            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                                String prefix = reader.getNamespacePrefix(i);
+                                nsMap.put((prefix != null) ? prefix : "", reader.getNamespaceURI(i));
+                            }
+                        }
+                        stack.add(new String[] { uri(reader.getNamespaceURI()), reader.getLocalName() });
+                        for (int i = 0; i < paths.length; i++) {
+                            Path path = paths[i];
+                            if (done[i]) {
+                                continue;
+                            }
+                            if (path.attribute == null) {
+                                if (path.matches(path.steps.length, stack, stack.size(), nsMap)) {
+                                    capturing.add(i);
+                                }
+                            } else if (path.matches(path.steps.length, stack, stack.size(), nsMap)) {
+                                for (int j = 0; j < reader.getAttributeCount() && ! done[i]; j++) {
+                                    if (path.attribute.matches(uri(reader.getAttributeNamespace(j)),
+                                                               reader.getAttributeLocalName(j), nsMap)) {
+                                        data.get(i).add(reader.getAttributeValue(j));
+                                        if (path.first) {
+                                            done[i] = true;
+                                            --remaining;
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (capturing.size() > 0) {
+                            text.append(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        remaining -= capture(capturing, text, data, done);
+                        stack.remove(stack.size() - 1);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return data;
+    }
+
+    // ends text capture of an element, returning the number of paths thereby done
+    private int capture(List<Integer> capturing, StringBuilder text, List<List<String>> data, boolean[] done) {
+        int completed = 0;
+        if (text.length() > 0) {
+            for (int i : capturing) {
+                data.get(i).add(text.toString());
+                if (paths[i].first) {
+                    done[i] = true;
+                    ++completed;
+                }
+            }
+        }
+        capturing.clear();
+        text.setLength(0);
+        return completed;
+    }
+
+    private static String uri(String uri) {
+        return (uri != null) ? uri : "";
+    }
+
+    private static class Path {
+        public Step[] steps;        // element steps
+        public Step attribute;      // final attribute step, null if none
+        public boolean first;       // true if only the first value wanted
+
+        // returns the path, or null if expression not supported
+        public static Path compile(String expr) {
+            Path path = new Path();
+            if (expr.startsWith("(") && expr.endsWith(")[1]")) {
+                path.first = true;
+                expr = expr.substring(1, expr.length() - 4);
+            }
+            if (! expr.startsWith("/")) {
+                return null;
+            }
+            List<Step> steps = new ArrayList<Step>();
+            int i = 0;
+            while (i < expr.length()) {
+                if (path.attribute != null) {
+                    // attribute must be the last step
+                    return null;
+                }
+                Step step = new Step();
+                if (expr.startsWith("//", i)) {
+                    step.descendant = true;
+                    i += 2;
+                } else if (expr.charAt(i) == '/') {
+                    i++;
+                } else {
+                    return null;
+                }
+                int next = expr.indexOf("/", i);
+                String token = (next > 0) ? expr.substring(i, next) : expr.substring(i);
+                Matcher m = stepPattern.matcher(token);
+                if (! m.matches()) {
+                    return null;
+                }
+                step.prefix = m.group(2);
+                step.name = m.group(3);
+                if (m.group(1) != null) {
+                    if (step.descendant) {
+                        return null;
+                    }
+                    step.attribute = true;
+                    path.attribute = step;
+                } else {
+                    steps.add(step);
+                }
+                i += token.length();
+            }
+            if (steps.isEmpty()) {
+                return null;
+            }
+            path.steps = steps.toArray(new Step[0]);
+            return path;
+        }
+
+        // true if the first count steps match the elements open at depth
+        public boolean matches(int count, List<String[]> stack, int depth, Map<String, String> nsMap) {
+            if (count == 0) {
+                return depth == 0;
+            }
+            if (depth == 0) {
+                return false;
+            }
+            Step step = steps[count - 1];
+            String[] name = stack.get(depth - 1);
+            if (! step.matches(name[0], name[1], nsMap)) {
+                return false;
+            }
+            if (! step.descendant) {
+                return matches(count - 1, stack, depth - 1, nsMap);
+            }
+            for (int d = depth - 1; d >= 0; d--) {
+                if (matches(count - 1, stack, d, nsMap)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Step {
+        public boolean descendant;  // true if descendant ('//') step
+        public boolean attribute;   // true if attribute step
+        public String prefix;       // namespace prefix, null if none
+        public String name;         // local name, or '*' for any
+
+        public boolean matches(String uri, String localName, Map<String, String> nsMap) {
+            if ("*".equals(name)) {
+                return true;
+            }
+            // unprefixed attributes are in no namespace, elements in the default one
+            String expected = (prefix == null && attribute) ? "" : uri(nsMap.get((prefix != null) ? prefix : ""));
+            return name.equals(localName) && uri.equals(expected);
+        }
+    }
+}
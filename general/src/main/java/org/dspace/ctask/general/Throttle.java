@@ -0,0 +1,108 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.IOException;
+
+/**
+ * Throttle is a token-bucket rate limiter for content reads, capping
+ * bytes per second and (optionally) read operations per second. Buckets
+ * hold at most one second of tokens, so bursts are short. Reads are paid
+ * for after they occur: a caller whose read overdraws a bucket sleeps
+ * until the debt is repaid. One Throttle may be shared by many threads,
+ * in which case the limits apply to their combined reads. Operations may
+ * also be held off entirely for a time (e.g. when a service asks callers
+ * to back off), and the total time callers spent waiting is recorded.
+ *
+ * @author richardrodgers
+ */
+class Throttle
+{
+    private static final double NANOS_PER_SEC = 1000000000.0;
+    // byte rate limit, 0 = unlimited
+    private final double bytesPerSec;
+    // read operation rate limit, 0 = unlimited
+    private final double opsPerSec;
+    // tokens in each bucket (may be negative when in debt)
+    private double byteTokens = 0.0;
+    private double opTokens = 0.0;
+    // time of last refill (nanos)
+    private long lastRefill = System.nanoTime();
+    // time before which no operation may proceed (nanos)
+    private long holdUntil = lastRefill;
+    // total time callers have waited (nanos)
+    private long waited = 0L;
+    
+    Throttle(double bytesPerSec, double opsPerSec) {
+        this.bytesPerSec = bytesPerSec;
+        this.opsPerSec = opsPerSec;
+        byteTokens = bytesPerSec;
+        opTokens = opsPerSec;
+    }
+    
+    /**
+     * Pays for a completed read, sleeping if either limit is exceeded
+     * 
+     * @param bytes the number of bytes read
+     * @throws IOException if interrupted while sleeping
+     */
+    synchronized void acquire(long bytes) throws IOException {
+        refill();
+        double wait = Math.max(0.0, (holdUntil - lastRefill) / NANOS_PER_SEC);
+        if (bytesPerSec > 0.0) {
+            byteTokens -= bytes;
+            if (byteTokens < 0.0) {
+                wait = Math.max(wait, -byteTokens / bytesPerSec);
+            }
+        }
+        if (opsPerSec > 0.0) {
+            opTokens -= 1.0;
+            if (opTokens < 0.0) {
+                wait = Math.max(wait, -opTokens / opsPerSec);
+            }
+        }
+        if (wait > 0.0) {
+            // sleeping holds the lock, so other readers queue behind the debt
+            try {
+                long nanos = (long)(wait * NANOS_PER_SEC);
+                Thread.sleep(nanos / 1000000L, (int)(nanos % 1000000L));
+                waited += nanos;
+            } catch (InterruptedException intE) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while throttled");
+            }
+            refill();
+        }
+    }
+    
+    /**
+     * Holds off all operations for a time
+     * 
+     * @param millis the time in milliseconds from now
+     */
+    synchronized void hold(long millis) {
+        holdUntil = Math.max(holdUntil, System.nanoTime() + millis * 1000000L);
+    }
+    
+    /**
+     * Returns the total time callers have waited
+     * 
+     * @return the time in milliseconds
+     */
+    synchronized long waited() {
+        return waited / 1000000L;
+    }
+    
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsed = (now - lastRefill) / NANOS_PER_SEC;
+        lastRefill = now;
+        byteTokens = Math.min(bytesPerSec, byteTokens + elapsed * bytesPerSec);
+        opTokens = Math.min(opsPerSec, opTokens + elapsed * opsPerSec);
+    }
+}
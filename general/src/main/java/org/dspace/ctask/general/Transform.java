@@ -0,0 +1,252 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Transform is a compiled transform definition: a sequence of operations
+ * applied in turn to a value. The definition is a list of operation names,
+ * each followed by its arguments (enclose in ' ' when whitespace needed):
+ *
+ * 'cut' <number> = remove number leading characters
+ * 'trunc' <number> = remove trailing characters after number length
+ * 'match' <pattern> = start match at pattern
+ * 'text' <characters> = append literal characters
+ * 'replace' <regex> <replacement> = replace all regex matches
+ * 'lowercase' = convert to lower case
+ * 'normalize-space' = trim, and collapse internal whitespace to one space
+ *
+ * If an operation cannot be applied to a value (e.g. cutting more characters
+ * than are in the value), the condition is logged and the untransformed value
+ * is returned. Immutable, so may be shared by threads.
+ *
+ * @author richardrodgers
+ */
+class Transform
+{
+    /** log4j category */
+    private static final Logger log = Logger.getLogger(Transform.class);
+    // definition token parsing pattern
+    private static final Pattern ttPattern = Pattern.compile("\'([^\']*)\'|(\\S+)");
+    // whitespace runs
+    private static final Pattern wsPattern = Pattern.compile("\\s+");
+    // operations in order of application
+    private final Op[] ops;
+
+    private Transform(Op[] ops) {
+        this.ops = ops;
+    }
+
+    /**
+     * Compiles a transform definition
+     *
+     * @param definition the definition
+     * @return the transform, or null if the definition is invalid
+     */
+    static Transform compile(String definition) {
+        String[] tokens = tokenize(definition);
+        List<Op> ops = new ArrayList<Op>();
+        int i = 0;
+        try {
+            while (i < tokens.length) {
+                String name = tokens[i++];
+                if ("cut".equals(name)) {
+                    ops.add(new Cut(Integer.parseInt(tokens[i++])));
+                } else if ("trunc".equals(name)) {
+                    ops.add(new Trunc(Integer.parseInt(tokens[i++])));
+                } else if ("match".equals(name)) {
+                    ops.add(new Match(tokens[i++]));
+                } else if ("text".equals(name)) {
+                    ops.add(new Text(tokens[i++]));
+                } else if ("replace".equals(name)) {
+                    Pattern regex = Pattern.compile(tokens[i]);
+                    if (! validReplacement(regex, tokens[i + 1])) {
+                        log.error("invalid replacement in transform: " + definition);
+                        return null;
+                    }
+                    ops.add(new Replace(regex, tokens[i + 1]));
+                    i += 2;
+                } else if ("lowercase".equals(name)) {
+                    ops.add(new Lowercase());
+                } else if ("normalize-space".equals(name)) {
+                    ops.add(new NormalizeSpace());
+                } else {
+                    log.error("unknown transform operation: " + name);
+                    return null;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException aioobE) {
+            log.error("missing argument in transform: " + definition);
+            return null;
+        } catch (NumberFormatException nfE) {
+            log.error("invalid number in transform: " + definition);
+            return null;
+        } catch (PatternSyntaxException psE) {
+            log.error("invalid pattern in transform: " + definition);
+            return null;
+        }
+        return new Transform(ops.toArray(new Op[0]));
+    }
+
+    /**
+     * Applies the transform to a value
+     *
+     * @param value the value
+     * @return the transformed value, or the value itself if not transformable
+     */
+    String apply(String value) {
+        String retValue = value;
+        for (Op op : ops) {
+            retValue = op.apply(retValue);
+            if (retValue == null) {
+                return value;
+            }
+        }
+        return retValue;
+    }
+
+    // true if replacement is usable with regex: its group references exist,
+    // and '$' and '\' are properly escaped
+    private static boolean validReplacement(Pattern regex, String replacement) {
+        // a dummy match having as many groups as the regex
+        StringBuilder dummy = new StringBuilder();
+        for (int g = 0; g < regex.matcher("").groupCount(); g++) {
+            dummy.append("()");
+        }
+        Matcher m = Pattern.compile(dummy.toString()).matcher("");
+        m.find();
+        try {
+            m.appendReplacement(new StringBuffer(), replacement);
+            return true;
+        } catch (IllegalArgumentException iaE) {
+            return false;
+        } catch (IndexOutOfBoundsException ioobE) {
+            return false;
+        }
+    }
+
+    private static String[] tokenize(String text) {
+        List<String> list = new ArrayList<String>();
+        Matcher m = ttPattern.matcher(text);
+        while (m.find()) {
+            if (m.group(1) != null) {
+                list.add(m.group(1));
+            } else if (m.group(2) != null) {
+                list.add(m.group(2));
+            }
+        }
+        return list.toArray(new String[0]);
+    }
+
+    private static abstract class Op {
+        // returns the transformed value, or null if not transformable
+        public abstract String apply(String value);
+    }
+
+    private static class Cut extends Op {
+        private final int index;
+
+        public Cut(int index) {
+            this.index = index;
+        }
+
+        public String apply(String value) {
+            if (value.length() > index) {
+                return value.substring(index);
+            }
+            log.error("requested cut: " + index + " exceeds value length");
+            return null;
+        }
+    }
+
+    private static class Trunc extends Op {
+        private final int index;
+
+        public Trunc(int index) {
+            this.index = index;
+        }
+
+        public String apply(String value) {
+            return (value.length() > index) ? value.substring(0, index) : value;
+        }
+    }
+
+    private static class Match extends Op {
+        private final String pattern;
+
+        public Match(String pattern) {
+            this.pattern = pattern;
+        }
+
+        public String apply(String value) {
+            int index = value.indexOf(pattern);
+            if (index >= 0) {
+                return value.substring(index);
+            }
+            log.error("requested match: " + pattern + " failed");
+            return null;
+        }
+    }
+
+    private static class Text extends Op {
+        private final String text;
+
+        public Text(String text) {
+            this.text = text;
+        }
+
+        public String apply(String value) {
+            return value + text;
+        }
+    }
+
+    private static class Replace extends Op {
+        private final Pattern regex;
+        private final String replacement;
+
+        public Replace(Pattern regex, String replacement) {
+            this.regex = regex;
+            this.replacement = replacement;
+        }
+
+        public String apply(String value) {
+            try {
+                return regex.matcher(value).replaceAll(replacement);
+            } catch (IndexOutOfBoundsException ioobE) {
+                // replacement refers to a group the regex lacks
+                log.error("requested replace: " + replacement + " failed");
+                return null;
+            } catch (IllegalArgumentException iaE) {
+                // replacement has an unescaped '$' or '\'
+                log.error("requested replace: " + replacement + " failed");
+                return null;
+            }
+        }
+    }
+
+    private static class Lowercase extends Op {
+        public String apply(String value) {
+            // independent of the default locale (e.g. Turkish dotless i)
+            return value.toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private static class NormalizeSpace extends Op {
+        public String apply(String value) {
+            return wsPattern.matcher(value.trim()).replaceAll(" ");
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that Digester yields the same digests whether content is streamed,
+ * read into direct buffers or memory-mapped, with observers attached.
+ *
+ * @author richardrodgers
+ */
+public class DigesterTest extends TestCase
+{
+    private static final String[] ALGORITHMS = { "MD5", "SHA-1" };
+    // not a multiple of the buffer size, so the last slice is short
+    private static final int CONTENT_SIZE = 3 * 1024 * 1024 + 17;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private File file;
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws IOException {
+        content = new byte[CONTENT_SIZE];
+        new Random(42L).nextBytes(content);
+        file = File.createTempFile("digester", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testStreamDigests() throws IOException {
+        Counter counter = new Counter();
+        InputStream in = new FileInputStream(file);
+        try {
+            assertDigests(Digester.digest(in, ALGORITHMS, BUFFER_SIZE, null, null, counter));
+        } finally {
+            in.close();
+        }
+        assertEquals(CONTENT_SIZE, counter.observed);
+    }
+
+    public void testDirectDigests() throws IOException {
+        Counter counter = new Counter();
+        assertDigests(Digester.digest(file, ALGORITHMS, BUFFER_SIZE, false, null, null, counter));
+        assertEquals(CONTENT_SIZE, counter.observed);
+    }
+
+    public void testMappedDigests() throws IOException {
+        Counter counter = new Counter();
+        assertDigests(Digester.digest(file, ALGORITHMS, BUFFER_SIZE, true, null, null, counter));
+        assertEquals(CONTENT_SIZE, counter.observed);
+    }
+
+    public void testMappedDigestsWithSeveralObservers() throws IOException {
+        Counter first = new Counter();
+        Counter second = new Counter();
+        assertDigests(Digester.digest(file, ALGORITHMS, BUFFER_SIZE, true, null, null, first, null, second));
+        assertEquals(CONTENT_SIZE, first.observed);
+        assertEquals(CONTENT_SIZE, second.observed);
+    }
+
+    private void assertDigests(String[] digests) throws IOException {
+        assertEquals(ALGORITHMS.length, digests.length);
+        for (int i = 0; i < ALGORITHMS.length; i++) {
+            try {
+                String expected = Digester.toHex(MessageDigest.getInstance(ALGORITHMS[i]).digest(content));
+                assertEquals(ALGORITHMS[i], expected, digests[i]);
+            } catch (NoSuchAlgorithmException nsaE) {
+                fail(nsaE.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Counter checks it sees the content in order, without consuming it
+     */
+    private class Counter implements Digester.Observer {
+        public long observed = 0L;
+
+        public void observe(long offset, ByteBuffer data) {
+            assertEquals(observed, offset);
+            byte[] seen = new byte[data.remaining()];
+            data.duplicate().get(seen);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(content, (int)offset, (int)offset + seen.length), seen));
+            observed += seen.length;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.general;
+
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests Transform compilation and application, notably that invalid
+ * replacements are rejected when compiled rather than failing when applied.
+ *
+ * @author richardrodgers
+ */
+public class TransformTest extends TestCase
+{
+    public void testReplace() {
+        assertEquals("10.1000-182", Transform.compile("replace / -").apply("10.1000/182"));
+        assertEquals("b-a", Transform.compile("replace '(a)-(b)' '$2-$1'").apply("a-b"));
+        assertEquals("x$y", Transform.compile("replace '-' '\\$'").apply("x-y"));
+    }
+
+    public void testInvalidReplacement() {
+        assertNull(Transform.compile("replace 'x' '$'"));
+        assertNull(Transform.compile("replace 'x' '$x'"));
+        assertNull(Transform.compile("replace 'x' 'y\\'"));
+        assertNull(Transform.compile("replace '(x)' '$2'"));
+    }
+
+    public void testLowercaseIgnoresDefaultLocale() {
+        Locale defLocale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertEquals("issn", Transform.compile("lowercase").apply("ISSN"));
+        } finally {
+            Locale.setDefault(defLocale);
+        }
+    }
+
+    public void testUntransformable() {
+        assertEquals("abc", Transform.compile("cut 5").apply("abc"));
+        assertEquals("10.1000/182", Transform.compile("match 10. trunc 60").apply("doi:10.1000/182"));
+    }
+}